@@ -0,0 +1,192 @@
+package core;
+
+import objects.Gene;
+import objects.GeneDistances;
+import objects.NexusFormatException;
+import objects.Species;
+import objects.SpeciesRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Gene trees of one input file and the species merged from them. A dataset isn't changed by the runs on it, all state
+ * of a run is kept apart, so it can be loaded once and used by any amount of runs, also at the same time.
+ */
+public class Dataset {
+
+    private final String name;
+    private final Map<String, GeneDistances> distanceMap;
+    private final List<Species> allSpecies;
+
+    /**
+     * Constructor. Merges the species of all gene trees, see Utils.mergeSpecies()
+     *
+     * @param name        name of the dataset, usually the input file
+     * @param distanceMap gene trees as read from the input
+     * @param registry    registry the species of the gene trees were interned in
+     */
+    public Dataset(String name, Map<String, GeneDistances> distanceMap, SpeciesRegistry registry) {
+        this.name = name;
+        this.distanceMap = Collections.unmodifiableMap(distanceMap);
+        this.allSpecies = Collections.unmodifiableList(Utils.mergeSpecies(distanceMap, registry));
+    }
+
+    private Dataset(String name, Map<String, GeneDistances> distanceMap, List<Species> allSpecies) {
+        this.name = name;
+        this.distanceMap = Collections.unmodifiableMap(distanceMap);
+        this.allSpecies = Collections.unmodifiableList(allSpecies);
+    }
+
+    /**
+     * Reads a nexus file, see NexusReaderDistances
+     *
+     * @param filename path to the nexus file
+     * @param threads  amount of threads parsing distance matrices
+     * @return the dataset
+     * @throws IOException          error reading the file
+     * @throws NexusFormatException error parsing the file
+     */
+    public static Dataset load(String filename, int threads) throws IOException, NexusFormatException {
+        return load(filename, threads, false);
+    }
+
+    /**
+     * Reads a nexus file, from its snapshot if useCache is set and the snapshot is up to date, see DistanceCache
+     *
+     * @param filename path to the nexus file
+     * @param threads  amount of threads parsing distance matrices
+     * @param useCache read from and write a snapshot of the distances
+     * @return the dataset
+     * @throws IOException          error reading the file
+     * @throws NexusFormatException error parsing the file
+     */
+    public static Dataset load(String filename, int threads, boolean useCache) throws IOException, NexusFormatException {
+        SpeciesRegistry registry = new SpeciesRegistry();
+        return new Dataset(filename, readDistances(filename, threads, useCache, registry), registry);
+    }
+
+    /**
+     * Reads the gene trees of a nexus file without merging the species yet
+     *
+     * @return the distance map like NexusReaderDistances.getDistanceMap()
+     */
+    static HashMap<String, GeneDistances> readDistances(String filename, int threads, boolean useCache, SpeciesRegistry registry) throws IOException, NexusFormatException {
+        HashMap<String, GeneDistances> distanceMap = useCache ? DistanceCache.load(filename, registry) : null;
+        if (distanceMap != null) {
+            Logger.getGlobal().warning("Read distances from snapshot " + DistanceCache.getCacheFilename(filename));
+            return distanceMap;
+        }
+        distanceMap = new NexusReaderDistances(filename, threads, registry).getDistanceMap();
+        if (distanceMap == null) {
+            throw new NexusFormatException("No ALLDISTANCES block in " + filename);
+        }
+        if (useCache) {
+            DistanceCache.write(filename, distanceMap);
+        }
+        return distanceMap;
+    }
+
+    /**
+     * Selects a part of the dataset. A run on it finds the HGTs as if the input only contained the selected gene trees,
+     * but only ranks and evaluates the selected species: the genes of the other species stay in the gene trees, so they
+     * are still written in the output matrices, only no HGTs are found for them. The genes and distances are shared
+     * with this dataset, only the species are new objects holding the genes of the selected trees.
+     *
+     * @param speciesNames names of the species to evaluate, all if null
+     * @param treeNames    names of the gene trees to keep, all if null
+     * @return the selected part
+     * @throws IllegalArgumentException if a species or gene tree doesn't exist
+     */
+    public Dataset subset(Collection<String> speciesNames, Collection<String> treeNames) {
+        if (speciesNames == null && treeNames == null) {
+            return this;
+        }
+        Map<String, GeneDistances> trees = new LinkedHashMap<>();
+        if (treeNames == null) {
+            trees.putAll(distanceMap);
+        } else {
+            for (String tree : treeNames) {
+                if (!distanceMap.containsKey(tree)) {
+                    throw new IllegalArgumentException("Unknown gene tree " + tree);
+                }
+            }
+            //keep the order of this dataset, that's the order the trees are written in
+            for (Map.Entry<String, GeneDistances> tree : distanceMap.entrySet()) {
+                if (treeNames.contains(tree.getKey())) {
+                    trees.put(tree.getKey(), tree.getValue());
+                }
+            }
+        }
+
+        //ids of the selected species
+        BitSet selectedIds = new BitSet();
+        if (speciesNames == null) {
+            allSpecies.forEach(s -> selectedIds.set(s.getId()));
+        } else {
+            Map<String, Species> byName = new HashMap<>();
+            allSpecies.forEach(s -> byName.put(s.getName(), s));
+            for (String species : speciesNames) {
+                Species s = byName.get(species);
+                if (s == null) {
+                    throw new IllegalArgumentException("Unknown species " + species);
+                }
+                selectedIds.set(s.getId());
+            }
+        }
+        List<Species> selected = new ArrayList<>();
+        for (Species s : allSpecies) {
+            if (!selectedIds.get(s.getId())) {
+                continue;
+            }
+            if (treeNames == null) {
+                selected.add(s);
+                continue;
+            }
+            Species part = new Species(s.getName(), s.getId());
+            for (Gene gene : s.getGenes()) {
+                if (trees.containsKey(gene.getGeneTree())) {
+                    part.getGenes().add(gene);
+                }
+            }
+            if (!part.getGenes().isEmpty()) {
+                part.indexGenesByTree();
+                selected.add(part);
+            }
+        }
+        return new Dataset(name, trees, selected);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return gene trees by name, unmodifiable
+     */
+    public Map<String, GeneDistances> getDistanceMap() {
+        return distanceMap;
+    }
+
+    /**
+     * @return gene trees, in the order they are written
+     */
+    public Collection<GeneDistances> getTrees() {
+        return distanceMap.values();
+    }
+
+    /**
+     * @return all species sorted by name, unmodifiable
+     */
+    public List<Species> getSpecies() {
+        return allSpecies;
+    }
+}
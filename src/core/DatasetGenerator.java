@@ -0,0 +1,266 @@
+package core;
+
+import objects.GeneTuple;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates synthetic nexus files with planted horizontal gene transfers, for benchmarks and accuracy checks. Every
+ * gene tree contains the same amount of genes of every species. Species get a random position on a line and the
+ * distance of two genes is the distance of their species plus noise, planted LESSER transfers are moved very close
+ * together and planted HIGHER transfers far apart. The planted transfers are written as RELATIONS block with type=rcb,
+ * so the file can be used with Utils.evaluateResults.
+ *
+ * <p>Every distance is computed from a hash of seed, tree and gene indices instead of being stored, so the output is
+ * written row by row and can be far larger than the available memory. The same seed always gives the same file.</p>
+ */
+public class DatasetGenerator {
+
+    private final int speciesCount;
+    private final int trees;
+    private final int genesPerTree;
+    private final long seed;
+    private final double transferRate;
+    private final double[] speciesPosition;
+    private final int speciesDigits;
+    private final int geneDigits;
+
+    /**
+     * Constructor.
+     *
+     * @param speciesCount amount of species
+     * @param trees        amount of gene trees
+     * @param genesPerTree genes of every species in every gene tree
+     * @param seed         seed, the same seed gives the same file
+     * @param transferRate share of the genes of a tree that are part of a planted transfer, between 0 and 1
+     */
+    public DatasetGenerator(int speciesCount, int trees, int genesPerTree, long seed, double transferRate) {
+        this.speciesCount = speciesCount;
+        this.trees = trees;
+        this.genesPerTree = genesPerTree;
+        this.seed = seed;
+        this.transferRate = Math.max(0, Math.min(1, transferRate));
+        this.speciesPosition = new double[speciesCount];
+        Random random = new Random(seed);
+        for (int s = 0; s < speciesCount; s++) {
+            speciesPosition[s] = random.nextDouble() * 100;
+        }
+        this.speciesDigits = Math.max(3, Integer.toString(speciesCount).length());
+        this.geneDigits = Math.max(5, Long.toString((long) trees * genesPerTree).length());
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tT.%1$tL] %5$s %n");
+        Logger log = Logger.getGlobal();
+        log.setLevel(Level.WARNING);
+
+        String outputfilename = null;
+        int speciesCount = 10;
+        int trees = 100;
+        int genesPerTree = 2;
+        long seed = 42;
+        double transferRate = 0.05;
+
+        for (int i = 0; i < args.length; i++) {
+            try {
+                if (args[i].equalsIgnoreCase("-o")) {
+                    outputfilename = args[++i];
+                } else if (args[i].equalsIgnoreCase("-species")) {
+                    speciesCount = Math.max(2, Integer.parseInt(args[++i]));
+                } else if (args[i].equalsIgnoreCase("-trees")) {
+                    trees = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (args[i].equalsIgnoreCase("-genes")) {
+                    genesPerTree = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (args[i].equalsIgnoreCase("-seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (args[i].equalsIgnoreCase("-rate")) {
+                    transferRate = Double.parseDouble(args[++i]);
+                } else {
+                    log.severe("Available parameters\n" +
+                            "-o filename\t\tOutput nexus file, writes to the standard output if not given\n" +
+                            "-species n\t\tAmount of species, defaults to 10\n" +
+                            "-trees n\t\tAmount of gene trees, defaults to 100\n" +
+                            "-genes n\t\tGenes of every species per gene tree, defaults to 2\n" +
+                            "-seed n\t\t\tSeed, the same seed gives the same file\n" +
+                            "-rate r\t\t\tShare of the genes that are part of a planted transfer, defaults to 0.05");
+                    System.exit(1);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                log.severe("Malformed parameters, somewhere near \"" + args[args.length - 1] + "\".");
+                System.exit(1);
+            }
+        }
+
+        DatasetGenerator generator = new DatasetGenerator(speciesCount, trees, genesPerTree, seed, transferRate);
+        try (Writer writer = new BufferedWriter(outputfilename == null
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(Paths.get(outputfilename), StandardCharsets.UTF_8), 1 << 20)) {
+            generator.write(writer);
+        }
+        if (outputfilename != null) {
+            log.warning("Wrote " + trees + " gene trees of " + speciesCount + " species to " + outputfilename);
+        }
+    }
+
+    /**
+     * Writes the TAXA, ALLDISTANCES and RELATIONS blocks
+     *
+     * @param writer output, should be buffered
+     * @throws IOException error writing the output
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write("#NEXUS\nBEGIN TAXA;\n\tDIMENSIONS NTAX = " + speciesCount + ";\n\tTAXLABELS\n");
+        for (int s = 0; s < speciesCount; s++) {
+            writer.write("\t\t" + speciesName(s) + "\n");
+        }
+        writer.write("\t\t;\nEND;\n\n");
+
+        int size = speciesCount * genesPerTree;
+        StringBuilder row = new StringBuilder();
+        writer.write("BEGIN ALLDISTANCES;\n[pairwise distances of all genes belonging to the same gene tree]\n");
+        for (int t = 0; t < trees; t++) {
+            Map<Long, GeneTuple.RelationType> transfers = plantTransfers(t);
+            writer.write("\tdistances\n\t\tname=G" + (t + 1) + " triangle=upper\n");
+            for (int i = 0; i < size; i++) {
+                row.setLength(0);
+                row.append("\t\t\t").append(geneLabel(t, i));
+                for (int j = i; j < size; j++) {
+                    row.append(' ');
+                    appendDistance(row, distance(t, i, j, transfers.get(pairKey(i, j))));
+                }
+                row.append('\n');
+                writer.append(row);
+            }
+            writer.write("\t\t\t;\n");
+        }
+        writer.write("END;\n\n");
+
+        writer.write("BEGIN RELATIONS;\n[matrices each describing a type of relation between genes]\n\t[===RCB===]\n");
+        writer.write("\t\t[planted transfers, LESS_THAN=-1, EQUAL=0, GREATER_THAN=1]\n");
+        for (int t = 0; t < trees; t++) {
+            Map<Long, GeneTuple.RelationType> transfers = plantTransfers(t);
+            writer.write("\trelation\n\t\ttype=RCB name=G" + (t + 1) + " triangle=both\n");
+            for (int i = 0; i < size; i++) {
+                row.setLength(0);
+                row.append("\t\t\t").append(geneLabel(t, i)).append(' ');
+                for (int j = 0; j < size; j++) {
+                    GeneTuple.RelationType type = i == j ? null : transfers.get(pairKey(i, j));
+                    row.append(type == GeneTuple.RelationType.LESSER ? "-1" : type == GeneTuple.RelationType.HIGHER ? " 1" : " 0");
+                    row.append(' ');
+                }
+                row.append('\n');
+                writer.append(row);
+            }
+            writer.write("\t\t\t;\n");
+        }
+        writer.write("END;\n");
+    }
+
+    /**
+     * Chooses the planted transfers of a tree, every gene is part of at most one transfer
+     *
+     * @return pair key of both genes mapped to the type of the transfer
+     */
+    private Map<Long, GeneTuple.RelationType> plantTransfers(int tree) {
+        Map<Long, GeneTuple.RelationType> transfers = new HashMap<>();
+        int size = speciesCount * genesPerTree;
+        int amount = (int) Math.round(transferRate * size / 2);
+        boolean[] used = new boolean[size];
+        Random random = new Random(mix(seed, tree, -1, -1));
+        for (int k = 0, attempts = 0; k < amount && attempts < amount * 10; attempts++) {
+            int first = random.nextInt(size);
+            int second = random.nextInt(size);
+            if (used[first] || used[second] || first / genesPerTree == second / genesPerTree) {
+                continue;
+            }
+            used[first] = true;
+            used[second] = true;
+            transfers.put(pairKey(first, second), random.nextBoolean() ? GeneTuple.RelationType.LESSER : GeneTuple.RelationType.HIGHER);
+            k++;
+        }
+        return transfers;
+    }
+
+    /**
+     * @return distance of gene i and gene j in the given tree, symmetric
+     */
+    private double distance(int tree, int i, int j, GeneTuple.RelationType transfer) {
+        if (i == j) {
+            return 0;
+        }
+        double noise = (mix(seed, tree, Math.min(i, j), Math.max(i, j)) >>> 11) * 0x1.0p-53;
+        if (transfer == GeneTuple.RelationType.LESSER) {
+            return 0.5 + noise * 2;
+        } else if (transfer == GeneTuple.RelationType.HIGHER) {
+            return 250 + noise * 50;
+        }
+        int firstSpecies = i / genesPerTree;
+        int secondSpecies = j / genesPerTree;
+        if (firstSpecies == secondSpecies) {
+            return 1 + noise * 5;
+        }
+        return Math.abs(speciesPosition[firstSpecies] - speciesPosition[secondSpecies]) + 5 + noise * 10;
+    }
+
+    private String speciesName(int species) {
+        return "SE" + pad(species + 1, speciesDigits);
+    }
+
+    /**
+     * @return label of gene i of a tree, gene ids are numbered through all trees like gene families
+     */
+    private String geneLabel(int tree, int i) {
+        return speciesName(i / genesPerTree) + "/" + pad((long) tree * genesPerTree + i % genesPerTree + 1, geneDigits);
+    }
+
+    private static String pad(long value, int digits) {
+        StringBuilder sb = new StringBuilder(Long.toString(value));
+        while (sb.length() < digits) {
+            sb.insert(0, '0');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a non negative distance with two decimals, much cheaper than String.format for large files
+     */
+    private static void appendDistance(StringBuilder sb, double value) {
+        long hundredths = Math.round(value * 100);
+        sb.append(hundredths / 100).append('.');
+        long decimals = hundredths % 100;
+        if (decimals < 10) {
+            sb.append('0');
+        }
+        sb.append(decimals);
+    }
+
+    private static long pairKey(int i, int j) {
+        return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+    }
+
+    /**
+     * SplitMix64 based hash of the seed and three indices
+     */
+    private static long mix(long seed, long a, long b, long c) {
+        long z = seed;
+        for (long value : new long[]{a, b, c}) {
+            z += 0x9E3779B97F4A7C15L ^ value * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+        }
+        return z;
+    }
+}
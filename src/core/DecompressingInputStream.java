@@ -0,0 +1,171 @@
+package core;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses a .gz or .zst file on its own thread, which hands the decompressed bytes in chunks over a bounded
+ * queue to the reading thread. Decompression and parsing overlap this way, while at most QUEUE_CHUNKS chunks are
+ * buffered. Gzip is decompressed in Java, zstd by the zstd command, as the JDK has no decoder for it.
+ */
+public class DecompressingInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int QUEUE_CHUNKS = 4;
+    private static final byte[] END = new byte[0];
+
+    private final String filename;
+    private final InputStream source;
+    private final Process process;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final Thread decompressor;
+    private volatile IOException error;
+
+    private byte[] chunk = new byte[0];
+    private int position;
+    private boolean finished;
+
+    private DecompressingInputStream(String filename, InputStream source, Process process) {
+        this.filename = filename;
+        this.source = source;
+        this.process = process;
+        this.decompressor = new Thread(this::decompress, "decompress " + filename);
+        decompressor.setDaemon(true);
+        decompressor.start();
+    }
+
+    /**
+     * @return true if the file is read through a DecompressingInputStream by open()
+     */
+    public static boolean isCompressed(String filename) {
+        String lower = filename.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".gz") || lower.endsWith(".zst");
+    }
+
+    /**
+     * Opens a file, decompressing it if it ends with .gz or .zst
+     *
+     * @param filename path to the file
+     * @return stream of the decompressed contents
+     * @throws IOException error opening the file or starting zstd
+     */
+    public static InputStream open(String filename) throws IOException {
+        String lower = filename.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".gz")) {
+            FileInputStream file = new FileInputStream(filename);
+            try {
+                return new DecompressingInputStream(filename, new GZIPInputStream(file, 1 << 16), null);
+            } catch (IOException e) {
+                file.close(); //the gzip header couldn't be read
+                throw e;
+            }
+        } else if (lower.endsWith(".zst")) {
+            new FileInputStream(filename).close(); //same FileNotFoundException as for other files
+            Process process;
+            try {
+                process = new ProcessBuilder("zstd", "-dcq", "--", filename)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+            } catch (IOException e) {
+                throw new IOException("Reading " + filename + " needs the zstd command: " + e.getMessage(), e);
+            }
+            return new DecompressingInputStream(filename, process.getInputStream(), process);
+        }
+        return new FileInputStream(filename);
+    }
+
+    /**
+     * Runs on the decompression thread until the end of the input, an error or close()
+     */
+    private void decompress() {
+        try {
+            try {
+                while (true) {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int length = source.readNBytes(buffer, 0, CHUNK_SIZE);
+                    if (length == 0) {
+                        break;
+                    }
+                    chunks.put(length == CHUNK_SIZE ? buffer : Arrays.copyOf(buffer, length));
+                }
+                if (process != null && process.waitFor() != 0) {
+                    error = new IOException("zstd couldn't decompress " + filename + ", exit code " + process.exitValue());
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            chunks.put(END);
+        } catch (InterruptedException e) {
+            //closed by the reading thread
+        }
+    }
+
+    /**
+     * @return false at the end of the input
+     */
+    private boolean nextChunk() throws IOException {
+        if (finished) {
+            return false;
+        }
+        try {
+            chunk = chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing " + filename);
+        }
+        position = 0;
+        if (chunk == END) {
+            finished = true;
+            if (error != null) {
+                throw new IOException("Error decompressing " + filename + ": " + error.getMessage(), error);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == chunk.length) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == chunk.length) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        decompressor.interrupt();
+        try {
+            source.close();
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package core;
+
+import objects.Gene;
+import objects.GeneDistances;
+import objects.Matrix;
+import objects.NexusFormatException;
+import objects.Species;
+import objects.SpeciesRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Binary snapshot (.hgtbin) of the distance matrices of a nexus file, so later runs on the same input can skip
+ * parsing the text. The snapshot remembers size, modification time and a sampled CRC32C checksum of the nexus file
+ * (see MappedFile.sampledChecksum()) and is only used if all of them still match.
+ *
+ * <p>Layout: a fixed preamble (magic, version, source size, source mtime, source checksum, header length), a header
+ * with the tree names, matrix formats and gene labels, and after padding to 8 bytes the complete n*n matrix of every
+ * tree as big endian doubles. A matrix that fits into one window of MappedFile doesn't cross windows, it is padded to
+ * the start of the next one instead, so the loaded GeneDistances read directly from the mapping.</p>
+ */
+public abstract class DistanceCache {
+
+    private static final long MAGIC = 0x48475442494E0002L; //"HGTBIN" and format version 2
+    private static final int PREAMBLE_LENGTH = 6 * Long.BYTES;
+
+    public static String getCacheFilename(String filename) {
+        return filename + ".hgtbin";
+    }
+
+    /**
+     * Loads the distance matrices from the snapshot of a nexus file
+     *
+     * @param filename path to the nexus file
+     * @param registry registry giving every species its id
+     * @return the distance map like NexusReaderDistances.getDistanceMap(), null if there is no valid snapshot
+     */
+    public static HashMap<String, GeneDistances> load(String filename, SpeciesRegistry registry) {
+        Logger log = Logger.getGlobal();
+        Path cachePath = Paths.get(getCacheFilename(filename));
+        if (!Files.isRegularFile(cachePath)) {
+            return null;
+        }
+        try (MappedFile cache = new MappedFile(cachePath.toString())) {
+            DataInputStream preamble = new DataInputStream(cache.openStream(0, PREAMBLE_LENGTH));
+            if (preamble.readLong() != MAGIC) {
+                log.warning("Ignoring " + cachePath + ", it isn't a snapshot of this version.");
+                return null;
+            }
+            long sourceSize = preamble.readLong();
+            long sourceModified = preamble.readLong();
+            long sourceChecksum = preamble.readLong();
+            long headerLength = preamble.readLong();
+            preamble.readLong(); //reserved
+
+            Path sourcePath = Paths.get(filename);
+            if (Files.size(sourcePath) != sourceSize || Files.getLastModifiedTime(sourcePath).toMillis() != sourceModified) {
+                log.warning("Ignoring " + cachePath + ", " + filename + " changed since it was written.");
+                return null;
+            }
+            try (MappedFile source = new MappedFile(filename)) {
+                if (source.sampledChecksum() != sourceChecksum) {
+                    log.warning("Ignoring " + cachePath + ", the checksum of " + filename + " doesn't match.");
+                    return null;
+                }
+            }
+
+            HashMap<String, GeneDistances> distanceMap = new HashMap<>();
+            DataInputStream header = new DataInputStream(cache.openStream(PREAMBLE_LENGTH, PREAMBLE_LENGTH + headerLength));
+            long dataOffset = align(PREAMBLE_LENGTH + headerLength);
+            int treeCount = header.readInt();
+            for (int t = 0; t < treeCount; t++) {
+                String treeName = header.readUTF();
+                Matrix.MatrixFormat format = Matrix.MatrixFormat.values()[header.readByte()];
+                int geneCount = header.readInt();
+                GeneDistances distances = new GeneDistances(format, treeName);
+                Map<String, Species> species = new HashMap<>();
+                for (int g = 0; g < geneCount; g++) {
+                    String speciesName = header.readUTF();
+                    String geneName = header.readUTF();
+                    Species geneSpecies = species.get(speciesName);
+                    if (geneSpecies == null) {
+                        geneSpecies = new Species(speciesName, registry);
+                        species.put(speciesName, geneSpecies);
+                        distances.getSpecies().add(geneSpecies);
+                    }
+                    distances.getGenes().add(new Gene(geneName, geneSpecies, treeName));
+                }
+                long count = (long) geneCount * geneCount;
+                dataOffset = matrixOffset(dataOffset, count);
+                DoubleBuffer matrix = cache.viewDoubles(dataOffset, count);
+                if (matrix == null) {
+                    //larger than a window, copied instead
+                    double[] copy = new double[Math.toIntExact(count)];
+                    cache.readDoubles(dataOffset, copy, 0, copy.length);
+                    matrix = DoubleBuffer.wrap(copy);
+                }
+                dataOffset += count * Double.BYTES;
+                distances.finish(matrix);
+                distanceMap.put(treeName, distances);
+            }
+            return distanceMap;
+        } catch (IOException | NexusFormatException | RuntimeException e) {
+            log.warning("Ignoring " + cachePath + ", it couldn't be read: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the distance matrices next to the nexus file they were read from. The snapshot is written
+     * to a temporary file first, so a crash never leaves half a snapshot behind.
+     *
+     * @param filename    path to the nexus file
+     * @param distanceMap distances read from that file
+     */
+    public static void write(String filename, Map<String, GeneDistances> distanceMap) {
+        Logger log = Logger.getGlobal();
+        Path cachePath = Paths.get(getCacheFilename(filename));
+        Path tmpPath = Paths.get(cachePath + ".tmp");
+        try {
+            Path sourcePath = Paths.get(filename);
+            long sourceChecksum;
+            try (MappedFile source = new MappedFile(filename)) {
+                sourceChecksum = source.sampledChecksum();
+            }
+
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(distanceMap.size());
+            for (GeneDistances distances : distanceMap.values()) {
+                header.writeUTF(distances.getTreeName());
+                header.writeByte(distances.getFormat().ordinal());
+                header.writeInt(distances.getGenes().size());
+                for (Gene gene : distances.getGenes()) {
+                    header.writeUTF(gene.getParent().getName());
+                    header.writeUTF(gene.getId());
+                }
+            }
+            header.flush();
+
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.BIG_ENDIAN);
+                buffer.putLong(MAGIC);
+                buffer.putLong(Files.size(sourcePath));
+                buffer.putLong(Files.getLastModifiedTime(sourcePath).toMillis());
+                buffer.putLong(sourceChecksum);
+                buffer.putLong(headerBytes.size());
+                buffer.putLong(0); //reserved
+                buffer.flip();
+                writeFully(channel, buffer);
+                writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+                buffer.clear();
+                long offset = PREAMBLE_LENGTH + headerBytes.size();
+                for (; offset < align(PREAMBLE_LENGTH + headerBytes.size()); offset++) {
+                    buffer.put((byte) 0);
+                }
+
+                for (GeneDistances distances : distanceMap.values()) {
+                    int size = distances.getGenes().size();
+                    long count = (long) size * size;
+                    for (long start = matrixOffset(offset, count); offset < start; offset += Double.BYTES) {
+                        if (!buffer.hasRemaining()) {
+                            buffer.flip();
+                            writeFully(channel, buffer);
+                            buffer.clear();
+                        }
+                        buffer.putDouble(0);
+                    }
+                    for (int r = 0; r < size; r++) {
+                        for (int c = 0; c < size; c++) {
+                            if (!buffer.hasRemaining()) {
+                                buffer.flip();
+                                writeFully(channel, buffer);
+                                buffer.clear();
+                            }
+                            buffer.putDouble(distances.getDistance(r, c));
+                        }
+                    }
+                    offset += count * Double.BYTES;
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+            }
+            Files.move(tmpPath, cachePath, StandardCopyOption.REPLACE_EXISTING);
+            log.warning("Wrote snapshot " + cachePath);
+        } catch (IOException e) {
+            log.severe("Couldn't write snapshot " + cachePath + ": " + e);
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException ignored) {
+                //nothing left to do
+            }
+        }
+    }
+
+    /**
+     * @return position of a matrix with count doubles that would start at offset, moved to the next window of
+     * MappedFile if it fits into one but would cross two
+     */
+    private static long matrixOffset(long offset, long count) {
+        long length = count * Double.BYTES;
+        if (length > 0 && length <= MappedFile.WINDOW_SIZE && offset / MappedFile.WINDOW_SIZE != (offset + length - 1) / MappedFile.WINDOW_SIZE) {
+            return (offset / MappedFile.WINDOW_SIZE + 1) * MappedFile.WINDOW_SIZE;
+        }
+        return offset;
+    }
+
+    private static long align(long offset) {
+        return (offset + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
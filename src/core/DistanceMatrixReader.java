@@ -0,0 +1,115 @@
+package core;
+
+import objects.Gene;
+import objects.GeneDistances;
+import objects.Matrix;
+import objects.NexusFormatException;
+import objects.Species;
+import objects.SpeciesRegistry;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the rows of one distance matrix of an ALLDISTANCES block into a GeneDistances. Every matrix gets its own
+ * reader, so the matrices of a file can be read by several threads at once.
+ */
+public class DistanceMatrixReader {
+
+    private final GeneDistances distances;
+    private final Map<String, Species> species;
+    private final SpeciesRegistry registry;
+    private double[] rowBuffer;
+
+    public DistanceMatrixReader(Matrix.MatrixFormat format, String treeName, SpeciesRegistry registry) {
+        this.distances = new GeneDistances(format, treeName);
+        this.species = new HashMap<>();
+        this.registry = registry;
+        this.rowBuffer = new double[64];
+    }
+
+    /**
+     * Reads one row of the matrix, the current token of the tokenizer has to be the label of the row
+     *
+     * @param tokenizer tokenizer positioned at the label of a row
+     * @throws NexusFormatException if a distance can't be read or the row doesn't fit the matrix
+     */
+    public void readRow(NexusTokenizer tokenizer) throws NexusFormatException {
+        int lineNumber = tokenizer.getLineNumber();
+        String label = tokenizer.token();
+        int separator = label.indexOf('/');
+        String speciesName = separator == -1 ? label : label.substring(0, separator);
+        Species rowSpecies = species.get(speciesName);
+        if (rowSpecies == null) {
+            rowSpecies = new Species(speciesName, registry);
+            species.put(speciesName, rowSpecies);
+            distances.getSpecies().add(rowSpecies);
+        }
+        int geneEnd = separator == -1 ? -1 : label.indexOf('/', separator + 1);
+        String geneName = separator == -1 ? "" : label.substring(separator + 1, geneEnd == -1 ? label.length() : geneEnd);
+        if (geneName.isEmpty()) {
+            throw new NexusFormatException("Malformed entry in input file! Gene tree: " + distances.getTreeName() + ", line number: " + lineNumber);
+        }
+        distances.getGenes().add(new Gene(geneName, rowSpecies, distances.getTreeName()));
+
+        int rowLength = 0;
+        while (tokenizer.nextToken()) {
+            if (tokenizer.tokenEquals(";")) {
+                continue;
+            }
+            tokenizer.stripTokenSemicolons();
+            if (rowLength == rowBuffer.length) {
+                rowBuffer = Arrays.copyOf(rowBuffer, rowBuffer.length * 2);
+            }
+            try {
+                rowBuffer[rowLength++] = tokenizer.tokenAsDouble();
+            } catch (NumberFormatException e) {
+                throw new NexusFormatException("Cannot read double number. Line: " + lineNumber, e);
+            }
+        }
+        try {
+            distances.addRow(rowBuffer, rowLength);
+        } catch (NexusFormatException e) {
+            throw new NexusFormatException(e.getMessage() + " Line: " + lineNumber);
+        }
+    }
+
+    /**
+     * Completes the matrix after its last row
+     *
+     * @param lineNumber line of the end of the matrix, used for error messages
+     * @return the distances of the gene tree
+     * @throws NexusFormatException if the amount of rows doesn't match the amount of genes
+     */
+    public GeneDistances finish(int lineNumber) throws NexusFormatException {
+        try {
+            distances.finish();
+        } catch (NexusFormatException e) {
+            throw new NexusFormatException(e.getMessage() + " Line: " + lineNumber);
+        }
+        return distances;
+    }
+
+    /**
+     * Reads all rows of a matrix until a line ending with a semicolon, used for matrices that are read on their own
+     *
+     * @param tokenizer tokenizer positioned in front of the first row
+     * @return the distances of the gene tree
+     * @throws NexusFormatException if the matrix is malformed or isn't closed
+     * @throws IOException          error reading the input
+     */
+    public GeneDistances readMatrix(NexusTokenizer tokenizer) throws NexusFormatException, IOException {
+        while (tokenizer.nextLine()) {
+            if (!tokenizer.lineEquals(";")) {
+                tokenizer.nextToken();
+                readRow(tokenizer);
+            }
+            if (tokenizer.lineEndsWith(';')) {
+                return finish(tokenizer.getLineNumber());
+            }
+        }
+        throw new NexusFormatException("Distance matrix " + distances.getTreeName() + " isn't closed. Line: " + tokenizer.getLineNumber());
+    }
+}
@@ -1,133 +1,296 @@
 package core;
 
-import objects.Counter;
-import objects.DistanceSpecieslistTuple;
+import objects.BestMatchDistances;
+import objects.CandidatePairs;
 import objects.Gene;
+import objects.GeneDistances;
 import objects.GeneTuple;
 import objects.Species;
+import objects.SpeciesDistribution;
+import objects.SpeciesResult;
 
-import java.text.DecimalFormat;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public abstract class DistributionAlgorithm {
 
-    public static List<GeneTuple> runAlgorithm(List<Species> allSpecies, Double percentage, boolean multithreading, GeneTuple.RelationType runMode) {
+    /**
+     * Amount of gene blocks per worker thread a species is split into, more blocks balance better but cost overhead
+     */
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    public static List<GeneTuple> runAlgorithm(List<Species> allSpecies, Double percentage, int threads, GeneTuple.RelationType runMode, Metrics metrics) {
+        return runAlgorithm(allSpecies, new double[]{percentage}, threads, runMode, metrics).get(0);
+    }
+
+    /**
+     * Runs the algorithm for several percentages in one pass. The best match distances and distributions don't depend
+     * on the percentage, so they are computed once, only the borders and the candidates are kept per percentage.
+     *
+     * @param allSpecies  List of all species
+     * @param percentages percentages to look for in the species distributions
+     * @param threads     amount of worker threads
+     * @param runMode     only search for this relation, both if null
+     * @param metrics     Metrics counting the processed genes and the time spent per phase
+     * @return found HGTs of every percentage, in the order of percentages
+     */
+    public static List<List<GeneTuple>> runAlgorithm(List<Species> allSpecies, double[] percentages, int threads, GeneTuple.RelationType runMode, Metrics metrics) {
+        return runAlgorithm(allSpecies, percentages, threads, runMode, metrics, null, null);
+    }
+
+    /**
+     * Like runAlgorithm(allSpecies, percentages, threads, runMode, metrics), reusing what is still valid of an earlier
+     * run and handing the result of every evaluated species to results. Both need a single percentage.
+     *
+     * @param previous results of an earlier run to reuse, null to evaluate everything
+     * @param results  receives the result of every species as soon as it is finished, from the worker threads
+     * @return found HGTs of every percentage ordered by gene tree and genes, in the order of percentages
+     */
+    public static List<List<GeneTuple>> runAlgorithm(List<Species> allSpecies, double[] percentages, int threads, GeneTuple.RelationType runMode, Metrics metrics,
+                                                     PreviousRun previous, Consumer<SpeciesResult> results) {
+        List<GeneDistances> trees = new ArrayList<>();
+        Set<GeneDistances> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Species s : allSpecies) {
+            for (Gene gene : s.getGenes()) {
+                if (gene.getDistances() != null && seen.add(gene.getDistances())) {
+                    trees.add(gene.getDistances());
+                }
+            }
+        }
+        trees.sort(Comparator.comparing(GeneDistances::getTreeName));
+
+        List<List<GeneTuple>> foundHGTs = new ArrayList<>();
+        List<HgtSink> sinks = new ArrayList<>();
+        for (int p = 0; p < percentages.length; p++) {
+            foundHGTs.add(new ArrayList<>());
+            sinks.add(HgtSink.collect(foundHGTs.get(p)));
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            runAlgorithm(allSpecies, trees, percentages, pool, runMode, metrics, previous, results, sinks);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //collecting doesn't write anything
+        } finally {
+            pool.shutdown();
+        }
+        return foundHGTs;
+    }
+
+    /**
+     * Runs the algorithm and streams the confirmed HGTs of every percentage to its sink, one gene tree at a time in
+     * the order of trees. Nothing but the candidate sets is kept for all trees at once, and all state of the run is
+     * kept apart from the species and genes, so several runs can share them.
+     *
+     * @param trees   gene trees, in the order they are handed to the sinks
+     * @param pool    pool running the evaluation, isn't shut down
+     * @param sinks   receives the HGTs of every percentage, in the order of percentages
+     * @throws IOException error in one of the sinks
+     */
+    public static void runAlgorithm(List<Species> allSpecies, Collection<GeneDistances> trees, double[] percentages, ForkJoinPool pool, GeneTuple.RelationType runMode, Metrics metrics,
+                                    PreviousRun previous, Consumer<SpeciesResult> results, List<HgtSink> sinks) throws IOException {
         Logger log = Logger.getGlobal();
         log.info("Algorithm started");
-        List<GeneTuple> allFoundHGTs = new ArrayList<>();
         int countGenes = 0;
         for (Species s : allSpecies) {
             countGenes += s.getGenes().size();
         }
-        final int countedGenes = countGenes;
-
-        final Counter counter = new Counter();
-
-        Thread status = new Thread(() -> {
-            DecimalFormat df = new DecimalFormat("###.##");
-            while (true) {
-                try {
-                    TimeUnit.SECONDS.sleep(30);
-                    if (counter.value < countedGenes) {
-                        log.warning("Processed " + counter.value + "/" + countedGenes + " genes (" + df.format(((double) counter.value / countedGenes) * 100) + "%)");
-                    } else {
-                        return;
-                    }
-                } catch (InterruptedException e) {
-                    return;
-                }
-            }
-        });
-        status.start();
+        metrics.addGenesTotal(countGenes);
 
         //***start main computing part
-        if (multithreading) {
-            CountDownLatch latch = new CountDownLatch(allSpecies.size());
-            for (Species s : allSpecies) {
-                Thread thread = new Thread(() -> {
-                    evaluateSpecies(s, allSpecies, percentage, counter, runMode);
-                    latch.countDown();
-                });
-                thread.start();
-            }
-
-            //wait for all threads to finish
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                log.severe("Multithreading encountered an error, try to disable it with -disableMultithreading");
-                System.exit(-1);
-                //e.printStackTrace();
-            }
-        } else {
-            for (Species s : allSpecies) {
-                evaluateSpecies(s, allSpecies, percentage, counter, runMode);
-            }
+        CandidatePairs[] candidates = new CandidatePairs[percentages.length];
+        for (int p = 0; p < percentages.length; p++) {
+            candidates[p] = new CandidatePairs(allSpecies);
         }
+        evaluateAll(pool, getSpeciesByCost(allSpecies), allSpecies, percentages, metrics, runMode, pool.getParallelism(), candidates, previous, results);
         //***end main computing part
 
-        status.interrupt();
+        //***start: confirm mutual candidates and hand them on tree by tree
+        for (int p = 0; p < percentages.length; p++) {
+            long found = confirmHgts(pool, candidates[p], trees, sinks.get(p), metrics);
+            log.warning("Algorithm finished" + (percentages.length > 1 ? " for percentage " + percentages[p] : "") + ", found " + found + " matches.");
+        }
+        //***end: confirm mutual candidates
+    }
 
-        //***start: evaluate every gene.getPotentialCandidate... list and add all HGTs to a list
-        for (Species s : allSpecies) {
-            for (Gene g : s.getGenes()) {
-                for (Gene potentialCandidate : g.getPotentialCandidateGenesLesser()) {
-                    if (potentialCandidate.getPotentialCandidateGenesLesser().stream().filter(testGene -> testGene.equals(g)).findFirst().orElse(null) != null) {
-                        allFoundHGTs.add(new GeneTuple(g, potentialCandidate, GeneTuple.RelationType.LESSER));
-                    }
-                    potentialCandidate.getPotentialCandidateGenesLesser().remove(g);
-                }
+    /**
+     * Evaluates only the species of one shard and hands their results to results, no HGTs are confirmed. The species
+     * are dealt to the shards in the order of their cost, so every shard gets about the same amount of work. Running
+     * runAlgorithm with the results of all shards as previous run confirms the same HGTs as a single run.
+     *
+     * @param shard  index of the shard, from 0 to shards - 1
+     * @param shards amount of shards
+     */
+    public static void evaluateShard(List<Species> allSpecies, double percentage, int threads, GeneTuple.RelationType runMode, Metrics metrics,
+                                     int shard, int shards, PreviousRun previous, Consumer<SpeciesResult> results) {
+        List<Species> speciesByCost = getSpeciesByCost(allSpecies);
+        List<Species> shardSpecies = new ArrayList<>();
+        int countGenes = 0;
+        for (int i = shard; i < speciesByCost.size(); i += shards) {
+            shardSpecies.add(speciesByCost.get(i));
+            countGenes += speciesByCost.get(i).getGenes().size();
+        }
+        metrics.addGenesTotal(countGenes);
+        Logger.getGlobal().warning("Evaluating shard " + (shard + 1) + "/" + shards + " with " + shardSpecies.size() + " of " + allSpecies.size() + " species.");
+
+        CandidatePairs[] candidates = {new CandidatePairs(allSpecies)};
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            evaluateAll(pool, shardSpecies, allSpecies, new double[]{percentage}, metrics, runMode, threads, candidates, previous, results);
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-                for (Gene potentialCandidate : g.getPotentialCandidateGenesHigher()) {
-                    if (potentialCandidate.getPotentialCandidateGenesHigher().stream().filter(testGene -> testGene.equals(g)).findFirst().orElse(null) != null) {
-                        allFoundHGTs.add(new GeneTuple(g, potentialCandidate, GeneTuple.RelationType.HIGHER));
-                    }
-                    potentialCandidate.getPotentialCandidateGenesHigher().remove(g);
-                }
-            }
+    /**
+     * @return the species, the most expensive ones (most genes) first
+     */
+    private static List<Species> getSpeciesByCost(List<Species> allSpecies) {
+        List<Species> speciesByCost = new ArrayList<>(allSpecies);
+        speciesByCost.sort(Comparator.comparing((Species s) -> s.getGenes().size()).reversed());
+        return speciesByCost;
+    }
+
+    /**
+     * Evaluates the given species in the pool, each species is split into gene blocks that idle workers can steal
+     */
+    private static void evaluateAll(ForkJoinPool pool, List<Species> species, List<Species> allSpecies, double[] percentages, Metrics metrics, GeneTuple.RelationType runMode, int threads,
+                                    CandidatePairs[] candidates, PreviousRun previous, Consumer<SpeciesResult> results) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Species s : species) {
+            tasks.add(pool.submit(() -> evaluateSpecies(s, allSpecies, percentages, metrics, runMode, threads, candidates, previous, results)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
         }
-        //***end: create hgt list
+    }
 
+    /**
+     * Confirms the HGTs: two genes are a HGT if both have the other one as potential candidate of the same relation.
+     * The mutual pairs are found in one parallel pass of lookups in the candidate sets and grouped by gene tree. The
+     * HGTs of a tree are ordered by the identifiers of their genes, the same pair as LESSER before HIGHER, using the
+     * rank of every gene among the identifiers of its tree as sort key, and handed to the sink.
+     *
+     * @param pool       pool finding the mutual pairs
+     * @param candidates potential candidates of all genes, after every species was evaluated
+     * @param trees      gene trees, in the order they are handed to the sink
+     * @param sink       receives the HGTs of every tree
+     * @param metrics    Metrics, the time spent in the sink is counted as writing
+     * @return amount of confirmed HGTs
+     * @throws IOException error in the sink
+     */
+    static long confirmHgts(ForkJoinPool pool, CandidatePairs candidates, Collection<GeneDistances> trees, HgtSink sink, Metrics metrics) throws IOException {
+        Logger log = Logger.getGlobal();
+        long resolutionStart = System.nanoTime();
+        Map<GeneDistances, Integer> treeIndex = new IdentityHashMap<>();
+        for (GeneDistances tree : trees) {
+            treeIndex.put(tree, treeIndex.size());
+        }
+        int[] treeOfGene = new int[candidates.size()];
+        for (int number = 0; number < candidates.size(); number++) {
+            Gene gene = candidates.getGene(number);
+            Integer index = gene == null ? null : treeIndex.get(gene.getDistances());
+            treeOfGene[number] = index == null ? -1 : index;
+        }
+        long[][] lesser = groupByTree(pool.submit(() -> candidates.findMutualPairs(GeneTuple.RelationType.LESSER)).join(), treeOfGene, trees.size());
+        long[][] higher = groupByTree(pool.submit(() -> candidates.findMutualPairs(GeneTuple.RelationType.HIGHER)).join(), treeOfGene, trees.size());
+        metrics.addTime(Metrics.Phase.MUTUAL_RESOLUTION, resolutionStart);
+
+        long found = 0;
+        int t = 0;
+        for (GeneDistances tree : trees) {
+            long treeStart = System.nanoTime();
+            List<GeneTuple> hgts = new ArrayList<>(lesser[t].length + higher[t].length);
+            if (lesser[t].length + higher[t].length > 0) {
+                //rank of every gene of the tree among the identifiers, ties by index so every rank is unique
+                List<Gene> genes = tree.getGenes();
+                Integer[] byIdentifier = new Integer[genes.size()];
+                for (int i = 0; i < byIdentifier.length; i++) {
+                    byIdentifier[i] = i;
+                }
+                Arrays.sort(byIdentifier, Comparator.comparing((Integer i) -> genes.get(i).getSpeciesAndGeneIdentifier()).thenComparingInt(i -> i));
+                int[] rank = new int[genes.size()];
+                for (int r = 0; r < byIdentifier.length; r++) {
+                    rank[byIdentifier[r]] = r;
+                }
 
-        if (allFoundHGTs.size() > 0) {
-            allFoundHGTs.sort((t1, t2) -> {
-                if (t1.first.getGeneTree().compareTo(t2.first.getGeneTree()) < 0) {
-                    return -1;
-                } else if (t1.first.getGeneTree().compareTo(t2.first.getGeneTree()) > 0) {
-                    return 1;
-                } else {
-                    if (t1.first.getSpeciesAndGeneIdentifier().compareTo(t2.first.getSpeciesAndGeneIdentifier()) < 0) {
-                        return -1;
-                    } else if (t1.first.getSpeciesAndGeneIdentifier().compareTo(t2.first.getSpeciesAndGeneIdentifier()) > 0) {
-                        return 1;
-                    } else {
-                        if (t1.second.getSpeciesAndGeneIdentifier().compareTo(t2.second.getSpeciesAndGeneIdentifier()) < 0) {
-                            return -1;
-                        } else {
-                            return 1;
-                        }
+                //sort key: lower rank, higher rank, LESSER before HIGHER
+                long[] keys = new long[lesser[t].length + higher[t].length];
+                int k = 0;
+                for (long pair : lesser[t]) {
+                    keys[k++] = sortKey(candidates, pair, rank, 0);
+                }
+                for (long pair : higher[t]) {
+                    keys[k++] = sortKey(candidates, pair, rank, 1);
+                }
+                Arrays.sort(keys);
+                for (long key : keys) {
+                    Gene first = genes.get(byIdentifier[(int) (key >>> 32)]);
+                    Gene second = genes.get(byIdentifier[(int) key >>> 1]);
+                    hgts.add(new GeneTuple(first, second, (key & 1) == 0 ? GeneTuple.RelationType.LESSER : GeneTuple.RelationType.HIGHER));
+                }
+                if (log.isLoggable(Level.INFO)) {
+                    for (GeneTuple tuple : hgts) {
+                        log.info(tuple.first.getSpeciesAndGeneIdentifier() + " with " + tuple.second.getSpeciesAndGeneIdentifier() + ". Type: " + tuple.type + ". Gene tree: " + tuple.first.getGeneTree() + ".");
                     }
                 }
-            });
+            }
+            metrics.addTime(Metrics.Phase.MUTUAL_RESOLUTION, treeStart);
+            long writeStart = System.nanoTime();
+            sink.acceptTree(tree, hgts);
+            metrics.addTime(Metrics.Phase.WRITE, writeStart);
+            found += hgts.size();
+            t++;
+        }
+        return found;
+    }
 
-            log.info("Printing results:");
-            for (GeneTuple tuple : allFoundHGTs) {
-                if (!tuple.first.getGeneTree().equals(tuple.second.getGeneTree())) {
-                    log.severe("Unexpected gene tree mismatch");
-                }
-                log.info(tuple.first.getSpeciesAndGeneIdentifier() + " with " + tuple.second.getSpeciesAndGeneIdentifier() + ". Type: " + tuple.type + ". Gene tree: " + tuple.first.getGeneTree() + ".");
+    /**
+     * @return the pairs of gene numbers grouped by the tree of their genes, pairs of unknown trees are left out
+     */
+    private static long[][] groupByTree(long[] pairs, int[] treeOfGene, int treeCount) {
+        int[] counts = new int[treeCount];
+        for (long pair : pairs) {
+            int tree = treeOfGene[(int) (pair >>> 32)];
+            if (tree >= 0) {
+                counts[tree]++;
+            }
+        }
+        long[][] grouped = new long[treeCount][];
+        for (int t = 0; t < treeCount; t++) {
+            grouped[t] = new long[counts[t]];
+            counts[t] = 0;
+        }
+        for (long pair : pairs) {
+            int tree = treeOfGene[(int) (pair >>> 32)];
+            if (tree >= 0) {
+                grouped[tree][counts[tree]++] = pair;
             }
         }
-        log.warning("Algorithm finished, found " + allFoundHGTs.size() + " matches.");
-        return allFoundHGTs;
+        return grouped;
+    }
+
+    /**
+     * @return (lower rank << 32) | (higher rank << 1) | type of a pair of gene numbers
+     */
+    private static long sortKey(CandidatePairs candidates, long pair, int[] rank, int type) {
+        int a = rank[candidates.getGene((int) (pair >>> 32)).getIndexInTree()];
+        int b = rank[candidates.getGene((int) pair).getIndexInTree()];
+        return ((long) Math.min(a, b) << 32) | ((long) Math.max(a, b) << 1) | type;
     }
 
     /**
@@ -136,9 +299,25 @@ public abstract class DistributionAlgorithm {
      * @param s          species
      * @param allSpecies List of all species (iterating over this)
      * @param percentage percentage to look for in the species distribution, for example smallest 5%
-     * @param counter    Counter used for the status update thread
+     * @param metrics    Metrics counting the processed genes and the time spent per phase
+     * @param threads    amount of worker threads, used to size the gene blocks
+     * @param candidates collects the potential candidates of every gene
+     */
+    static void evaluateSpecies(Species s, List<Species> allSpecies, double percentage, Metrics metrics, GeneTuple.RelationType runMode, int threads, CandidatePairs candidates) {
+        evaluateSpecies(s, allSpecies, new double[]{percentage}, metrics, runMode, threads, new CandidatePairs[]{candidates}, null, null);
+    }
+
+    /**
+     * Evaluate a single species for several percentages at once, the preparation is shared by all of them. With a
+     * single percentage the results of an earlier run can be reused and the results of this run can be recorded.
+     *
+     * @param percentages percentages to look for in the species distribution
+     * @param candidates  collects the potential candidates of every gene, one per percentage
+     * @param previous    results of an earlier run to reuse, null to evaluate everything
+     * @param results     receives the result of the species, null if it isn't needed
      */
-    private static void evaluateSpecies(Species s, List<Species> allSpecies, double percentage, Counter counter, GeneTuple.RelationType runMode) {
+    static void evaluateSpecies(Species s, List<Species> allSpecies, double[] percentages, Metrics metrics, GeneTuple.RelationType runMode, int threads, CandidatePairs[] candidates,
+                                PreviousRun previous, Consumer<SpeciesResult> results) {
         Logger log = Logger.getGlobal();
         //***start: preparation
         final int minimumAmountOfGenes = 2;
@@ -146,158 +325,272 @@ public abstract class DistributionAlgorithm {
             log.warning("Skipping species " + s.getName() + " because it has less than " + minimumAmountOfGenes + " genes.");
             return;
         }
+        if ((previous != null || results != null) && percentages.length != 1) {
+            throw new IllegalArgumentException("Results can only be reused or recorded for a single percentage");
+        }
 
-        //save the bestMatchDistances map for every gene of species s
-        for (Gene gene : s.getGenes()) {
-            Map<Species, Double> bestMatchDistances = new HashMap<>();
-            for (Species sForBestMatch : allSpecies) {
-                if (sForBestMatch != s) {
-                    bestMatchDistances.put(sForBestMatch, sForBestMatch.findBestMatchDistance(gene));
+        final List<Gene> genes = s.getGenes();
+        final SpeciesResult previousResult = previous == null ? null : previous.getResult(s);
+        if (previousResult != null && previous.isComplete(s)) {
+            //nothing this species depends on changed, so its candidates are still the same
+            for (Gene gene : genes) {
+                long start = System.nanoTime();
+                SpeciesResult.GeneResult reused = previousResult.getGene(gene.getGeneTree(), gene.getIndexInTree());
+                for (int c = 0; c < reused.getCandidatesLesser().length; c++) {
+                    addCandidates(candidates[0], GeneTuple.RelationType.LESSER, gene, reused.getCandidatesLesser()[c]);
+                    addCandidates(candidates[0], GeneTuple.RelationType.HIGHER, gene, reused.getCandidatesHigher()[c]);
                 }
+                metrics.geneProcessed(s.getName(), start);
             }
-            gene.setBestMatchDistances(bestMatchDistances);
+            if (results != null) {
+                results.accept(previousResult);
+            }
+            return;
         }
-        //***end: preparation
-
-        //***start: main part, compare each gene to other genes
-        for (Gene gene : s.getGenes()) {
-            //needed for distribution computing only. Already here for performance reasons
-            List<Species> orderedSpeciesOfCurrentGene = Utils.getOrderedSpecies(gene.getBestMatchDistances()); //this was once done using the updated genemap using the distance of the looked at candidateGene.
-            for (Species potentialCandidateSpecies : gene.getBestMatchDistances().keySet()) {
-
-                //***start: distribution of potentialCandidateSpecies
-                int[] distribution = new int[allSpecies.size()]; //allSpecies.size is an upper limit
-                int distributionTotalValueCount = 0;
-                for (Gene differentGeneOfRootSpecies : s.getGenes()) {
-
-                    List<DistanceSpecieslistTuple> orderedSpeciesOfDifferentGeneGrouped = new ArrayList<>();
-                    DistanceSpecieslistTuple.addDistanceSpecieslistTuplesToList(orderedSpeciesOfDifferentGeneGrouped, differentGeneOfRootSpecies.getBestMatchDistances());
-
-                    for (DistanceSpecieslistTuple tuple : orderedSpeciesOfDifferentGeneGrouped) {
-                        for (Species potentiallyRemoved : tuple.species) {
-                            if (orderedSpeciesOfCurrentGene.
-                                    stream()
-                                    .filter(species ->
-                                            species.getName()
-                                                    .equals(potentiallyRemoved
-                                                            .getName()))
-                                    .findFirst().orElse(null) == null) {
-                                tuple.species.remove(potentiallyRemoved);
-                            }
-                        }
-                    }
-                    orderedSpeciesOfDifferentGeneGrouped.removeIf(tuple -> tuple.species.size() == 0);
-
-                    for (int i = 0; i < orderedSpeciesOfDifferentGeneGrouped.size(); i++) {
-                        if (orderedSpeciesOfDifferentGeneGrouped.get(i).species.stream().filter(species -> species.equals(potentialCandidateSpecies)).findFirst().orElse(null) != null) {
-                            distribution[i]++;
-                            distributionTotalValueCount++;
-                            break;
-                        }
-                    }
+        final int blockSize = genes.size() / (threads * BLOCKS_PER_THREAD);
+
+        //every other species, a gene's best match distances and the distribution use the indices of this list
+        final List<Species> candidateSpecies = new ArrayList<>(allSpecies);
+        candidateSpecies.removeIf(species -> species.getId() == s.getId());
+
+        //results of genes in unchanged gene trees can be reused, except for the candidate species added since then
+        final SpeciesResult.GeneResult[] reusable = new SpeciesResult.GeneResult[genes.size()];
+        final BitSet addedCandidates = previousResult == null ? new BitSet() : previous.getAddedCandidates(s);
+        if (previousResult != null) {
+            for (int g = 0; g < genes.size(); g++) {
+                Gene gene = genes.get(g);
+                if (previous.isUnchanged(gene.getGeneTree())) {
+                    reusable[g] = previousResult.getGene(gene.getGeneTree(), gene.getIndexInTree());
                 }
+            }
+        }
 
-                int computedBorderLesser = 0;
-                int howManyElementsDidWeFind = 0;
-                for (int i = 0; i < distribution.length; i++) {
-                    howManyElementsDidWeFind += distribution[i];
-                    if (howManyElementsDidWeFind >= distributionTotalValueCount * percentage) {
-                        computedBorderLesser = i;
-                        break;
-                    }
+        //save the bestMatchDistances for every gene of species s, they belong to this run as they depend on allSpecies
+        final double[][] allBestMatchDistances = new double[genes.size()][];
+        final BestMatchDistances[] bestMatches = new BestMatchDistances[genes.size()];
+        //the reused candidates of a gene are still valid if no added species has genes in its tree
+        final boolean[] sameCandidates = new boolean[genes.size()];
+        new GeneRangeTask(0, genes.size(), blockSize, g -> {
+            long start = System.nanoTime();
+            Gene gene = genes.get(g);
+            double[] bestMatchDistances = reusable[g] == null ? null : reusable[g].getBestMatchDistances();
+            if (bestMatchDistances == null) {
+                bestMatchDistances = new double[candidateSpecies.size()];
+                for (int c = 0; c < candidateSpecies.size(); c++) {
+                    bestMatchDistances[c] = candidateSpecies.get(c).findBestMatchDistance(gene);
                 }
-
-                int computedBorderHigher = distribution.length;
-                howManyElementsDidWeFind = 0;
-                for (int i = distribution.length - 1; i >= 0; i--) {
-                    howManyElementsDidWeFind += distribution[i];
-                    if (howManyElementsDidWeFind >= distributionTotalValueCount * percentage) {
-                        computedBorderHigher = i;
-                        break;
+            } else {
+                sameCandidates[g] = reusable[g].getCandidatesLesser() != null;
+                if (!addedCandidates.isEmpty()) {
+                    bestMatchDistances = bestMatchDistances.clone();
+                    for (int c = addedCandidates.nextSetBit(0); c >= 0; c = addedCandidates.nextSetBit(c + 1)) {
+                        bestMatchDistances[c] = candidateSpecies.get(c).findBestMatchDistance(gene);
+                        sameCandidates[g] &= bestMatchDistances[c] == Double.MAX_VALUE;
                     }
                 }
-                //***end: distribution computing
+            }
+            allBestMatchDistances[g] = bestMatchDistances;
+            bestMatches[g] = new BestMatchDistances(bestMatchDistances);
+            metrics.addTime(Metrics.Phase.BEST_MATCH, start);
+        }).invoke();
+
+        //the distribution is the same for every percentage, only the borders differ
+        long distributionStart = System.nanoTime();
+        SpeciesDistribution distribution = reusableDistribution(previousResult, reusable, candidateSpecies, allSpecies.size())
+                ? SpeciesDistribution.fromCumulativeCounts(s, candidateSpecies, previousResult.getDistribution())
+                : buildDistribution(s, bestMatches, candidateSpecies, allSpecies.size(), blockSize);
+        int[][] computedBordersLesser = new int[candidateSpecies.size()][percentages.length];
+        int[][] computedBordersHigher = new int[candidateSpecies.size()][percentages.length];
+        int[] widestBorderLesser = new int[candidateSpecies.size()];
+        int[] widestBorderHigher = new int[candidateSpecies.size()];
+        for (int c = 0; c < candidateSpecies.size(); c++) {
+            widestBorderLesser[c] = Integer.MIN_VALUE;
+            widestBorderHigher[c] = Integer.MAX_VALUE;
+            for (int p = 0; p < percentages.length; p++) {
+                computedBordersLesser[c][p] = distribution.getBorderLesser(c, percentages[p]);
+                computedBordersHigher[c][p] = distribution.getBorderHigher(c, percentages[p]);
+                widestBorderLesser[c] = Math.max(widestBorderLesser[c], computedBordersLesser[c][p]);
+                widestBorderHigher[c] = Math.min(widestBorderHigher[c], computedBordersHigher[c][p]);
+            }
+        }
+        //candidates of a gene in an unchanged tree stay the same as long as the border stays the same
+        boolean[] sameBorderLesser = new boolean[candidateSpecies.size()];
+        boolean[] sameBorderHigher = new boolean[candidateSpecies.size()];
+        for (int c = 0; previousResult != null && c < candidateSpecies.size(); c++) {
+            sameBorderLesser[c] = previousResult.getBordersLesser()[c] == computedBordersLesser[c][0];
+            sameBorderHigher[c] = previousResult.getBordersHigher()[c] == computedBordersHigher[c][0];
+        }
+        metrics.addTime(Metrics.Phase.DISTRIBUTION, distributionStart);
+        //***end: preparation
 
-                //get and sort all genes of potentialCandidateSpecies
-                List<Gene> orderedGenesOfPotentialCandidateSpeciesByDistanceToGene = new ArrayList<>(potentialCandidateSpecies.getGenes());
-                orderedGenesOfPotentialCandidateSpeciesByDistanceToGene.sort(Comparator.comparing(comparedGene -> Utils.getDistanceBetweenGenes(gene, comparedGene)));
+        //***start: main part, compare each gene to other genes
+        //candidates are added to concurrent sets, so the blocks don't need any further synchronization
+        final SpeciesResult.GeneResult[] geneResults = new SpeciesResult.GeneResult[genes.size()];
+        new GeneRangeTask(0, genes.size(), blockSize, g -> {
+            long start = System.nanoTime();
+            Gene gene = genes.get(g);
+            SpeciesResult.GeneResult reused = sameCandidates[g] ? reusable[g] : null;
+            int[][] foundLesser = new int[candidateSpecies.size()][];
+            int[][] foundHigher = new int[candidateSpecies.size()][];
+            for (int c = 0; c < candidateSpecies.size(); c++) {
+                Species potentialCandidateSpecies = candidateSpecies.get(c);
+                int[] bordersLesser = computedBordersLesser[c];
+                int[] bordersHigher = computedBordersHigher[c];
+                foundLesser[c] = reused != null && sameBorderLesser[c] ? reused.getCandidatesLesser()[c] : null;
+                foundHigher[c] = reused != null && sameBorderHigher[c] ? reused.getCandidatesHigher()[c] : null;
+
+                //get and sort the genes of potentialCandidateSpecies in the tree of gene, the others have no distance to it
+                List<Gene> orderedGenesOfPotentialCandidateSpeciesByDistanceToGene = new ArrayList<>(potentialCandidateSpecies.getGenesInTree(gene.getGeneTree()));
+                if (foundLesser[c] == null || foundHigher[c] == null) {
+                    orderedGenesOfPotentialCandidateSpeciesByDistanceToGene.sort(Comparator.comparing(comparedGene -> Utils.getDistanceBetweenGenes(gene, comparedGene)));
+                }
+                int[] found = results == null ? null : new int[orderedGenesOfPotentialCandidateSpeciesByDistanceToGene.size()];
+                int foundCount = 0;
 
                 //***start: compare their position if they are a result of a hgt
+                //the search for a percentage stops at the first gene that doesn't fit its border, so a gene is a
+                //candidate for every percentage whose border fits all positions up to and including this gene
+
                 //iterate to find LESSER hgts
-                if (runMode != GeneTuple.RelationType.HIGHER) {
+                if (runMode == GeneTuple.RelationType.HIGHER) {
+                    foundLesser[c] = new int[0];
+                } else if (foundLesser[c] != null) {
+                    addCandidates(candidates[0], GeneTuple.RelationType.LESSER, gene, foundLesser[c]);
+                } else {
+                    int highestPosition = Integer.MIN_VALUE;
                     for (Gene potentialCandidateGene : orderedGenesOfPotentialCandidateSpeciesByDistanceToGene) {
-                        if (!gene.getGeneTree().equals(potentialCandidateGene.getGeneTree())) {
-                            continue;
-                        }
-
-                        int positionInCurrentGene = getPositionOfSpeciesComparedToGene(gene, potentialCandidateGene, potentialCandidateSpecies);
-
-                        if (positionInCurrentGene < computedBorderLesser) {
-                            log.info("Potential candidate for LESSER: " + gene.getSpeciesAndGeneIdentifier() + " -> " + potentialCandidateGene.getSpeciesAndGeneIdentifier());
-                            gene.getPotentialCandidateGenesLesser().add(potentialCandidateGene);
-                        } else {
+                        highestPosition = Math.max(highestPosition, getPositionOfSpeciesComparedToGene(bestMatches[g], gene, potentialCandidateGene, c));
+                        if (highestPosition >= widestBorderLesser[c]) {
                             break; //if the current potentialCandidateGene already doesn't fit the rest also won't fit because we ordered them by distance
                         }
+                        log.info("Potential candidate for LESSER: " + gene.getSpeciesAndGeneIdentifier() + " -> " + potentialCandidateGene.getSpeciesAndGeneIdentifier());
+                        for (int p = 0; p < percentages.length; p++) {
+                            if (highestPosition < bordersLesser[p]) {
+                                candidates[p].add(GeneTuple.RelationType.LESSER, gene, potentialCandidateGene);
+                            }
+                        }
+                        if (found != null) {
+                            found[foundCount++] = potentialCandidateGene.getIndexInTree();
+                        }
                     }
+                    foundLesser[c] = found == null ? null : Arrays.copyOf(found, foundCount);
                 }
 
 
                 Collections.reverse(orderedGenesOfPotentialCandidateSpeciesByDistanceToGene); //when searching for HIGHER relation
 
                 //iterate to find HIGHER hgts
-                if (runMode != GeneTuple.RelationType.LESSER) {
+                if (runMode == GeneTuple.RelationType.LESSER) {
+                    foundHigher[c] = new int[0];
+                } else if (foundHigher[c] != null) {
+                    addCandidates(candidates[0], GeneTuple.RelationType.HIGHER, gene, foundHigher[c]);
+                } else {
+                    foundCount = 0;
+                    int lowestPosition = Integer.MAX_VALUE;
                     for (Gene potentialCandidateGene : orderedGenesOfPotentialCandidateSpeciesByDistanceToGene) {
-                        if (!gene.getGeneTree().equals(potentialCandidateGene.getGeneTree())) {
-                            continue;
-                        }
-
-                        int positionInCurrentGene = getPositionOfSpeciesComparedToGene(gene, potentialCandidateGene, potentialCandidateSpecies);
-
-                        if (positionInCurrentGene > computedBorderHigher) {
-                            log.info("Potential candidate for HIGHER: " + gene.getSpeciesAndGeneIdentifier() + " -> " + potentialCandidateGene.getSpeciesAndGeneIdentifier());
-                            gene.getPotentialCandidateGenesHigher().add(potentialCandidateGene);
-                        } else {
+                        lowestPosition = Math.min(lowestPosition, getPositionOfSpeciesComparedToGene(bestMatches[g], gene, potentialCandidateGene, c));
+                        if (lowestPosition <= widestBorderHigher[c]) {
                             break; //if the current potentialCandidateGene already doesn't fit the rest also won't fit because we ordered them by distance
                         }
+                        log.info("Potential candidate for HIGHER: " + gene.getSpeciesAndGeneIdentifier() + " -> " + potentialCandidateGene.getSpeciesAndGeneIdentifier());
+                        for (int p = 0; p < percentages.length; p++) {
+                            if (lowestPosition > bordersHigher[p]) {
+                                candidates[p].add(GeneTuple.RelationType.HIGHER, gene, potentialCandidateGene);
+                            }
+                        }
+                        if (found != null) {
+                            found[foundCount++] = potentialCandidateGene.getIndexInTree();
+                        }
                     }
+                    foundHigher[c] = found == null ? null : Arrays.copyOf(found, foundCount);
                 }
                 //***end: comparison
             }
-            counter.value++; //increment processed gene counter for status by one
-        }
+            if (results != null) {
+                geneResults[g] = new SpeciesResult.GeneResult(gene.getGeneTree(), gene.getIndexInTree(), allBestMatchDistances[g], foundLesser, foundHigher);
+            }
+            metrics.addTime(Metrics.Phase.CANDIDATE_SEARCH, start);
+            metrics.geneProcessed(s.getName(), start); //increment processed gene counter for status by one
+        }).invoke();
         //***end: main part
+
+        if (results != null) {
+            int[] bordersLesser = new int[candidateSpecies.size()];
+            int[] bordersHigher = new int[candidateSpecies.size()];
+            for (int c = 0; c < candidateSpecies.size(); c++) {
+                bordersLesser[c] = computedBordersLesser[c][0];
+                bordersHigher[c] = computedBordersHigher[c][0];
+            }
+            results.accept(new SpeciesResult(s.getName(), bordersLesser, bordersHigher, distribution.getCumulativeCounts(), Arrays.asList(geneResults)));
+        }
     }
 
     /**
-     * Returns the position of potentialCandidateSpecies when looking at the best match distances of gene,
-     * but using the updated position of potentialCandidateGene
-     *
-     * @param gene                      root gene
-     * @param potentialCandidateGene    gene that is a potential hgt candidate
-     * @param potentialCandidateSpecies species of the potentialCandidateGene
-     * @return int representing the position of potentialCandidateSpecies when looking at the best match distances
+     * Adds the genes with the given indices in the tree of gene as potential candidates of gene
      */
-    private static int getPositionOfSpeciesComparedToGene(Gene gene, Gene potentialCandidateGene, Species potentialCandidateSpecies) {
-        //***start: update the position of potentialCandidateSpecies in gene.getBestMatchDistances according to gene's distance to potentialCandidateGene
-
-        //overwrite the bestMatchDistance of gene to potentialCandidateSpecies with the current distance of the potentialCandidateGene
-        Map<Species, Double> currentGeneMap = gene.getBestMatchDistances();
-        Double originalValue = currentGeneMap.get(potentialCandidateSpecies);
-        currentGeneMap.put(potentialCandidateSpecies, Utils.getDistanceBetweenGenes(gene, potentialCandidateGene));
-
-        List<DistanceSpecieslistTuple> orderedSpeciesOfCurrentGeneGrouped = new ArrayList<>();
-        DistanceSpecieslistTuple.addDistanceSpecieslistTuplesToList(orderedSpeciesOfCurrentGeneGrouped, currentGeneMap);
-
-        currentGeneMap.put(potentialCandidateSpecies, originalValue); //restore correct gene map
-        int positionInCurrentGene = 0;
+    private static void addCandidates(CandidatePairs candidates, GeneTuple.RelationType type, Gene gene, int[] indicesInTree) {
+        for (int index : indicesInTree) {
+            candidates.add(type, gene, gene.getDistances().getGenes().get(index));
+        }
+    }
 
-        for (int i = 0; i < orderedSpeciesOfCurrentGeneGrouped.size(); i++) {
-            if (orderedSpeciesOfCurrentGeneGrouped.get(i).species.stream().filter(species -> species.equals(potentialCandidateSpecies)).findFirst().orElse(null) != null) {
-                positionInCurrentGene = i;
-                break;
+    /**
+     * The distribution only depends on the best match distances of the genes, so the one of an earlier run still fits
+     * if every gene of the species is in an unchanged gene tree
+     */
+    private static boolean reusableDistribution(SpeciesResult previousResult, SpeciesResult.GeneResult[] reusable, List<Species> candidateSpecies, int distributionLength) {
+        if (previousResult == null || previousResult.getDistribution() == null || previousResult.getGenes().size() != reusable.length
+                || previousResult.getDistribution().length != candidateSpecies.size()) {
+            return false;
+        }
+        for (SpeciesResult.GeneResult gene : reusable) {
+            if (gene == null) {
+                return false;
             }
         }
-        //***end: return the updated position
-        return positionInCurrentGene;
+        for (int[] counts : previousResult.getDistribution()) {
+            if (counts.length != distributionLength) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the rank table of species s: for every gene of s the grouped position of every other species when they
+     * are ordered by their best match distance to the gene. Every gene is ranked exactly once, the distributions of
+     * all candidate species are then read from the cumulative histograms of this table.
+     *
+     * @param s                  species
+     * @param bestMatches        best match distances of every gene of s
+     * @param candidateSpecies   every other species, in the order of the best match distances
+     * @param distributionLength amount of possible positions, the amount of all species
+     * @param blockSize          amount of genes ranked per task
+     * @return distribution of every other species
+     */
+    private static SpeciesDistribution buildDistribution(Species s, BestMatchDistances[] bestMatches, List<Species> candidateSpecies, int distributionLength, int blockSize) {
+        int[][] ranks = new int[bestMatches.length][candidateSpecies.size()];
+        new GeneRangeTask(0, bestMatches.length, blockSize, g -> {
+            BestMatchDistances bestMatchDistances = bestMatches[g];
+            for (int c = 0; c < candidateSpecies.size(); c++) {
+                ranks[g][c] = bestMatchDistances.getPosition(c);
+            }
+        }).invoke();
+        return new SpeciesDistribution(s, candidateSpecies, ranks, distributionLength);
+    }
+
+    /**
+     * Returns the position of a candidate species when looking at the best match distances of gene,
+     * but using the updated position of potentialCandidateGene
+     *
+     * @param bestMatches            best match distances of gene
+     * @param gene                   root gene
+     * @param potentialCandidateGene gene that is a potential hgt candidate
+     * @param candidate              index of the species of potentialCandidateGene in the best match distances
+     * @return int representing the position of the candidate species when looking at the best match distances
+     */
+    static int getPositionOfSpeciesComparedToGene(BestMatchDistances bestMatches, Gene gene, Gene potentialCandidateGene, int candidate) {
+        //position among the best match distances of gene with the one of the candidate species replaced by the distance of potentialCandidateGene
+        return bestMatches.getPositionWithReplacement(candidate, Utils.getDistanceBetweenGenes(gene, potentialCandidateGene));
     }
 }
@@ -0,0 +1,45 @@
+package core;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs an action for every index of a range, usually the genes of a species. The range is split in half until the
+ * blocks are small enough, so idle workers of the ForkJoinPool can steal the remaining blocks of a large species.
+ */
+public class GeneRangeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final int blockSize;
+    private final IntConsumer action;
+
+    /**
+     * Constructor.
+     *
+     * @param from      first index (inclusive)
+     * @param to        last index (exclusive)
+     * @param blockSize amount of indices that are processed without splitting any further
+     * @param action    action to run for every index
+     */
+    public GeneRangeTask(int from, int to, int blockSize, IntConsumer action) {
+        this.from = from;
+        this.to = to;
+        this.blockSize = Math.max(1, blockSize);
+        this.action = action;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= blockSize) {
+            for (int i = from; i < to; i++) {
+                action.accept(i);
+            }
+        } else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new GeneRangeTask(from, middle, blockSize, action), new GeneRangeTask(middle, to, blockSize, action));
+        }
+    }
+}
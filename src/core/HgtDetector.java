@@ -0,0 +1,185 @@
+package core;
+
+import objects.GeneTuple;
+import objects.SpeciesResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Entry point for running the algorithm from other code. A detector is built for a loaded Dataset and streams the
+ * HGTs of every run to its sinks; everything a run changes is created per run, so the same dataset can be used by
+ * many detectors one after another or at the same time, for example:
+ *
+ * <pre>
+ * Dataset dataset = Dataset.load("input.nex", threads);
+ * List&lt;GeneTuple&gt; hgts = new ArrayList&lt;&gt;();
+ * HgtDetector.builder(dataset).percentage(0.2).runMode(GeneTuple.RelationType.HIGHER).sink(HgtSink.collect(hgts)).build().run();
+ * </pre>
+ */
+public class HgtDetector {
+
+    private final Dataset dataset;
+    private final double[] percentages;
+    private final GeneTuple.RelationType runMode;
+    private final ForkJoinPool pool;
+    private final int threads;
+    private final Metrics metrics;
+    private final PreviousRun previous;
+    private final Consumer<SpeciesResult> results;
+    private final List<HgtSink> sinks;
+
+    private HgtDetector(Builder builder) {
+        this.dataset = builder.dataset;
+        this.percentages = builder.percentages.clone();
+        this.runMode = builder.runMode;
+        this.pool = builder.pool;
+        this.threads = builder.threads;
+        this.metrics = builder.metrics;
+        this.previous = builder.previous;
+        this.results = builder.results;
+        this.sinks = Collections.unmodifiableList(new ArrayList<>(builder.sinks));
+    }
+
+    public static Builder builder(Dataset dataset) {
+        return new Builder(dataset);
+    }
+
+    /**
+     * Runs the algorithm and hands the HGTs of every gene tree to the sinks. The sinks aren't closed.
+     *
+     * @throws IOException error in one of the sinks
+     */
+    public void run() throws IOException {
+        Metrics runMetrics = metrics == null ? new Metrics() : metrics;
+        ForkJoinPool runPool = pool == null ? new ForkJoinPool(threads) : pool;
+        try {
+            DistributionAlgorithm.runAlgorithm(dataset.getSpecies(), dataset.getTrees(), percentages, runPool, runMode, runMetrics, previous, results, sinks);
+        } finally {
+            if (pool == null) {
+                runPool.shutdown();
+            }
+        }
+    }
+
+    public Dataset getDataset() {
+        return dataset;
+    }
+
+    public static class Builder {
+
+        private final Dataset dataset;
+        private double[] percentages = {0.05};
+        private GeneTuple.RelationType runMode;
+        private ForkJoinPool pool;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private Metrics metrics;
+        private PreviousRun previous;
+        private Consumer<SpeciesResult> results;
+        private final List<HgtSink> sinks = new ArrayList<>();
+
+        private Builder(Dataset dataset) {
+            if (dataset == null) {
+                throw new IllegalArgumentException("A dataset is needed");
+            }
+            this.dataset = dataset;
+        }
+
+        /**
+         * @param percentage percentage of the distribution of a species to look for HGTs in, defaults to 0.05
+         */
+        public Builder percentage(double percentage) {
+            return percentages(percentage);
+        }
+
+        /**
+         * @param percentages several percentages evaluated in one pass, every one needs its own sink
+         */
+        public Builder percentages(double... percentages) {
+            if (percentages.length == 0) {
+                throw new IllegalArgumentException("At least one percentage is needed");
+            }
+            this.percentages = percentages.clone();
+            return this;
+        }
+
+        /**
+         * @param runMode only search for HGTs of this relation, both if null (default)
+         */
+        public Builder runMode(GeneTuple.RelationType runMode) {
+            this.runMode = runMode;
+            return this;
+        }
+
+        /**
+         * @param pool pool running the evaluation, isn't shut down by the detector. Without a pool every run creates
+         *             its own with the given amount of threads.
+         */
+        public Builder pool(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * @param threads amount of worker threads if no pool is given, defaults to the amount of available processors
+         */
+        public Builder threads(int threads) {
+            this.threads = Math.max(1, threads);
+            return this;
+        }
+
+        /**
+         * @param metrics Metrics counting the processed genes and the time spent per phase, a new one per run if null
+         */
+        public Builder metrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param previous results of an earlier run to reuse, needs a single percentage
+         */
+        public Builder previous(PreviousRun previous) {
+            this.previous = previous;
+            return this;
+        }
+
+        /**
+         * @param results receives the result of every species from the worker threads, needs a single percentage
+         */
+        public Builder results(Consumer<SpeciesResult> results) {
+            this.results = results;
+            return this;
+        }
+
+        /**
+         * Adds the sink of the next percentage
+         */
+        public Builder sink(HgtSink sink) {
+            sinks.add(sink);
+            return this;
+        }
+
+        /**
+         * Adds the sinks of the next percentages
+         */
+        public Builder sinks(List<HgtSink> sinks) {
+            this.sinks.addAll(sinks);
+            return this;
+        }
+
+        public HgtDetector build() {
+            if (sinks.size() != percentages.length) {
+                throw new IllegalArgumentException("Every percentage needs a sink, got " + sinks.size() + " sinks for " + percentages.length + " percentages");
+            }
+            if ((previous != null || results != null) && percentages.length > 1) {
+                throw new IllegalArgumentException("Earlier results and species results need a single percentage");
+            }
+            return new HgtDetector(this);
+        }
+    }
+}
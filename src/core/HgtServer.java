@@ -0,0 +1,497 @@
+package core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import objects.GeneDistances;
+import objects.GeneTuple;
+import objects.NexusFormatException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resident server answering run requests over HTTP on the loopback interface, so pipelines with many small runs don't
+ * pay JVM startup, parsing and warm-up every time. The datasets are loaded once at start, all runs share one
+ * ForkJoinPool and at most -runs of them are evaluated at the same time. Further requests wait in a queue with -queue
+ * places and are rejected with 503 when it is full.
+ *
+ * <p>Requests, parameters are given in the query or as form in the body of a POST:</p>
+ * <pre>
+ * /datasets  name, species and gene trees of every loaded dataset as JSON
+ * /status    running, queued, finished and failed runs as JSON
+ * /run       dataset=name (optional with a single dataset), p=percentage or p1,p2,..., mode=higher|lesser,
+ *            species=a,b,..., trees=g1,g2,..., format=ndjson|tsv|sparse|dense, output=filename
+ * </pre>
+ * <p>Without output the HGTs of a single percentage are streamed back in the response as ndjson (default), tsv or
+ * sparse nexus. With output they are written to the file like by Main, dense by default, and the response is a JSON
+ * summary. Files are only written if an output directory was given at start, output is a relative path in it and
+ * must not leave it. trees restricts the input to the given gene trees, species only restricts which species are evaluated: the
+ * genes of the other species stay in the gene trees and are written in dense output, but they aren't ranked and no
+ * HGTs are found for them.</p>
+ * Usage: java core.HgtServer -i a.nex,b.nex.gz -port 8080 -threads 8 -runs 2 -queue 100 -outputDir results
+ */
+public class HgtServer {
+
+    private final Map<String, Dataset> datasets;
+    private final Path outputDirectory;
+    private final ForkJoinPool pool;
+    private final ThreadPoolExecutor runs;
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService handlers;
+
+    /**
+     * Constructor.
+     *
+     * @param datasets        datasets by name
+     * @param outputDirectory directory the output files of runs are written to, null to only answer in the response
+     * @param threads         worker threads shared by all runs
+     * @param maxRuns         amount of runs evaluated at the same time
+     * @param queue           amount of runs waiting at most
+     */
+    public HgtServer(Map<String, Dataset> datasets, Path outputDirectory, int threads, int maxRuns, int queue) {
+        this.datasets = datasets;
+        this.outputDirectory = outputDirectory == null ? null : outputDirectory.toAbsolutePath().normalize();
+        this.pool = new ForkJoinPool(threads);
+        this.runs = new ThreadPoolExecutor(maxRuns, maxRuns, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue));
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tT.%1$tL] %5$s %n");
+        Logger log = Logger.getGlobal();
+        log.setLevel(Level.WARNING);
+
+        List<String> filenames = new ArrayList<>();
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxRuns = 2;
+        int queue = 100;
+        boolean useCache = false;
+        String outputDirectory = null;
+
+        for (int i = 0; i < args.length; i++) {
+            try {
+                if (args[i].equalsIgnoreCase("-i")) {
+                    filenames.addAll(Arrays.asList(args[++i].split(",")));
+                } else if (args[i].equalsIgnoreCase("-port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equalsIgnoreCase("-threads")) {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (args[i].equalsIgnoreCase("-runs")) {
+                    maxRuns = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (args[i].equalsIgnoreCase("-queue")) {
+                    queue = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (args[i].equalsIgnoreCase("-outputDir")) {
+                    outputDirectory = args[++i];
+                } else if (args[i].equalsIgnoreCase("-cache")) {
+                    useCache = true;
+                } else if (args[i].equalsIgnoreCase("-s") || args[i].equalsIgnoreCase("-silent")) {
+                    log.setLevel(Level.SEVERE);
+                } else if (args[i].equalsIgnoreCase("-v") || args[i].equalsIgnoreCase("-verbose")) {
+                    log.setLevel(Level.ALL);
+                } else {
+                    log.severe("Available parameters\n" +
+                            "-i f1,f2,...\t\tNexus files loaded once and kept in memory, named by their file name\n" +
+                            "-port n\t\t\tPort on the loopback interface, defaults to 8080\n" +
+                            "-threads n\t\tWorker threads shared by all runs, defaults to the amount of available processors\n" +
+                            "-runs n\t\t\tRuns evaluated at the same time, defaults to 2\n" +
+                            "-queue n\t\tRuns waiting at most, further requests are rejected, defaults to 100\n" +
+                            "-outputDir dir\t\tDirectory runs with output=filename write to, without it runs only answer in the response\n" +
+                            "-cache\t\t\tReads the distances from a binary snapshot if it is up to date, writes one otherwise\n" +
+                            "-s -silent\t\tRemoves most command line output\n" +
+                            "-v -verbose\t\tAdds additional command line output");
+                    System.exit(1);
+                }
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                log.severe("Malformed parameters, somewhere near \"" + args[Math.min(i, args.length - 1)] + "\".");
+                System.exit(1);
+            }
+        }
+        if (filenames.isEmpty()) {
+            log.severe("You did not enter an input file. Do so with \"-i filename.nex\"!");
+            System.exit(1);
+        }
+
+        Map<String, Dataset> datasets = new LinkedHashMap<>();
+        for (String filename : filenames) {
+            String name = Paths.get(filename).getFileName().toString();
+            if (datasets.containsKey(name)) {
+                log.severe("Two inputs are named " + name + ", application is exiting!");
+                System.exit(1);
+            }
+            try {
+                datasets.put(name, Dataset.load(filename, threads, useCache));
+                log.warning("Loaded " + filename + " as dataset " + name);
+            } catch (IOException | NexusFormatException e) {
+                log.severe("Couldn't read " + filename + ": " + e.getMessage() + ", application is exiting!");
+                System.exit(1);
+            }
+        }
+
+        if (outputDirectory != null) {
+            try {
+                Files.createDirectories(Paths.get(outputDirectory));
+            } catch (IOException e) {
+                log.severe("Couldn't create the output directory " + outputDirectory + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        HgtServer hgtServer = new HgtServer(datasets, outputDirectory == null ? null : Paths.get(outputDirectory), threads, maxRuns, queue);
+        try {
+            hgtServer.start(port);
+        } catch (IOException e) {
+            log.severe("Couldn't start the server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(hgtServer::stop));
+        log.warning("Listening on http://localhost:" + port + "/ with " + datasets.size() + " datasets.");
+    }
+
+    /**
+     * Starts answering requests on the loopback interface
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/datasets", exchange -> handle(exchange, this::handleDatasets));
+        server.createContext("/status", exchange -> handle(exchange, this::handleStatus));
+        server.createContext("/run", exchange -> handle(exchange, this::handleRun));
+        //the handlers only parse the requests, the runs are evaluated by the run executor
+        handlers = Executors.newFixedThreadPool(2);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and cancels the runs that are still waiting or running
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            handlers.shutdownNow();
+        }
+        runs.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private static void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+        }
+    }
+
+    private void handleDatasets(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (Map.Entry<String, Dataset> dataset : datasets.entrySet()) {
+            json.append(json.length() > 1 ? ", " : "")
+                    .append("{\"name\": \"").append(Utils.escape(dataset.getKey()))
+                    .append("\", \"species\": ").append(dataset.getValue().getSpecies().size())
+                    .append(", \"trees\": ").append(dataset.getValue().getTrees().size()).append('}');
+        }
+        respond(exchange, 200, "application/json", json.append("]\n").toString());
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "application/json", "{\"running\": " + runs.getActiveCount() + ", \"queued\": " + runs.getQueue().size()
+                + ", \"finished\": " + finished.get() + ", \"failed\": " + failed.get() + "}\n");
+    }
+
+    private void handleRun(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = readParameters(exchange);
+        Dataset dataset = getDataset(parameters.get("dataset"));
+        double[] percentages = {0.05};
+        if (parameters.containsKey("p")) {
+            String[] values = parameters.get("p").split(",");
+            percentages = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    percentages[i] = Double.parseDouble(values[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed percentage " + values[i]);
+                }
+            }
+        }
+        GeneTuple.RelationType runMode = null;
+        if (parameters.containsKey("mode")) {
+            if (parameters.get("mode").equalsIgnoreCase("higher")) {
+                runMode = GeneTuple.RelationType.HIGHER;
+            } else if (parameters.get("mode").equalsIgnoreCase("lesser")) {
+                runMode = GeneTuple.RelationType.LESSER;
+            } else {
+                throw new IllegalArgumentException("Unknown mode " + parameters.get("mode") + ", use higher or lesser");
+            }
+        }
+        dataset = dataset.subset(getList(parameters, "species"), getList(parameters, "trees"));
+        String output = parameters.get("output");
+        if (output != null) {
+            getOutputPath(output);
+        }
+        String format = parameters.getOrDefault("format", output == null ? "ndjson" : "dense").toLowerCase(Locale.ROOT);
+        if (!Arrays.asList("dense", "sparse", "ndjson", "tsv").contains(format)) {
+            throw new IllegalArgumentException("Unknown output format " + format);
+        }
+        if (output == null && (format.equals("dense") || percentages.length > 1)) {
+            throw new IllegalArgumentException("Dense matrices and several percentages need an output file");
+        }
+
+        HgtDetector.Builder detector = HgtDetector.builder(dataset).percentages(percentages).runMode(runMode).pool(pool);
+        double[] runPercentages = percentages;
+        try {
+            runs.execute(() -> {
+                if (output == null) {
+                    stream(exchange, detector, format);
+                } else {
+                    write(exchange, detector, runPercentages, format, output);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            respond(exchange, 503, "text/plain", "Too many runs waiting, try again later\n");
+        }
+    }
+
+    /**
+     * Runs and streams the HGTs back in the response, the response is started with the first gene tree so errors
+     * before it can still be answered with 500
+     */
+    private void stream(HttpExchange exchange, HgtDetector.Builder detector, String format) {
+        ResponseSink sink = new ResponseSink(exchange, format);
+        try {
+            detector.sink(sink).build().run();
+            sink.close();
+            finished.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            Logger.getGlobal().severe("Run failed: " + e);
+            if (!sink.isStarted()) {
+                respondQuietly(exchange, 500, "Run failed: " + e.getMessage() + "\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Runs, writes the HGTs to files and answers with a summary
+     */
+    private void write(HttpExchange exchange, HgtDetector.Builder detector, double[] percentages, String format, String output) {
+        List<HgtSink> files = new ArrayList<>();
+        long[] counts = new long[percentages.length];
+        try {
+            for (int p = 0; p < percentages.length; p++) {
+                String filename = percentages.length > 1 ? Main.getSweepFilename(output, percentages[p]) : output;
+                HgtSink file = HgtSink.open(format, getOutputPath(filename).toString(), null, 1);
+                files.add(file);
+                int index = p;
+                detector.sink((tree, hgts) -> {
+                    counts[index] += hgts.size();
+                    file.acceptTree(tree, hgts);
+                });
+            }
+            detector.build().run();
+            for (HgtSink file : files) {
+                file.close();
+            }
+            files.clear();
+            StringBuilder json = new StringBuilder("{\"outputs\": [");
+            for (int p = 0; p < percentages.length; p++) {
+                json.append(p > 0 ? ", " : "").append("{\"percentage\": ").append(percentages[p])
+                        .append(", \"file\": \"").append(Utils.escape(percentages.length > 1 ? Main.getSweepFilename(output, percentages[p]) : output))
+                        .append("\", \"hgts\": ").append(counts[p]).append('}');
+            }
+            respondQuietly(exchange, 200, json.append("]}\n").toString());
+            finished.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            Logger.getGlobal().severe("Run failed: " + e);
+            respondQuietly(exchange, 500, "Run failed: " + e.getMessage() + "\n");
+        } finally {
+            for (HgtSink file : files) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    //already failed
+                }
+            }
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return path of an output file of a run in the output directory
+     * @throws IllegalArgumentException if there is no output directory or the path isn't a relative path in it
+     */
+    private Path getOutputPath(String output) {
+        if (outputDirectory == null) {
+            throw new IllegalArgumentException("The server was started without -outputDir, leave out output to get the HGTs in the response");
+        }
+        Path relative;
+        try {
+            relative = Paths.get(output);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Malformed output " + output);
+        }
+        if (output.isEmpty() || relative.isAbsolute() || relative.getRoot() != null) {
+            throw new IllegalArgumentException("output has to be a relative path in the output directory");
+        }
+        for (Path segment : relative) {
+            if (segment.toString().equals("..")) {
+                throw new IllegalArgumentException("output must not contain ..");
+            }
+        }
+        Path path = outputDirectory.resolve(relative).normalize();
+        if (!path.startsWith(outputDirectory) || path.equals(outputDirectory)) {
+            throw new IllegalArgumentException("output has to be a file in the output directory");
+        }
+        //symbolic links could still lead out of it
+        boolean inside;
+        try {
+            inside = path.getParent().toRealPath().startsWith(outputDirectory.toRealPath()) && !Files.isSymbolicLink(path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The directory of output doesn't exist in the output directory");
+        }
+        if (!inside) {
+            throw new IllegalArgumentException("output has to be a file in the output directory");
+        }
+        return path;
+    }
+
+    /**
+     * @return the dataset with the given name, the only dataset if name is null and there is only one
+     */
+    private Dataset getDataset(String name) {
+        if (name == null) {
+            if (datasets.size() == 1) {
+                return datasets.values().iterator().next();
+            }
+            throw new IllegalArgumentException("Choose a dataset with dataset=name, see /datasets");
+        }
+        Dataset dataset = datasets.get(name);
+        if (dataset == null) {
+            throw new IllegalArgumentException("Unknown dataset " + name + ", see /datasets");
+        }
+        return dataset;
+    }
+
+    private static List<String> getList(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        return value == null || value.isEmpty() ? null : Arrays.asList(value.split(","));
+    }
+
+    /**
+     * @return parameters of the query and of a form in the body
+     */
+    private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parseParameters(exchange.getRequestURI().getRawQuery(), parameters);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            parseParameters(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), parameters);
+        }
+        return parameters;
+    }
+
+    private static void parseParameters(String encoded, Map<String, String> parameters) {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = URLDecoder.decode(separator == -1 ? pair : pair.substring(0, separator), StandardCharsets.UTF_8);
+            String value = separator == -1 ? "" : URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            parameters.put(key.toLowerCase(Locale.ROOT), value);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Responds from a run, the client may already be gone
+     */
+    private static void respondQuietly(HttpExchange exchange, int status, String body) {
+        try {
+            respond(exchange, status, status == 200 ? "application/json" : "text/plain", body);
+        } catch (IOException e) {
+            Logger.getGlobal().info("Couldn't answer " + exchange.getRemoteAddress() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams the HGTs into the response, which is only started with the first gene tree
+     */
+    private static class ResponseSink implements HgtSink {
+
+        private final HttpExchange exchange;
+        private final String format;
+        private HgtSink out;
+
+        ResponseSink(HttpExchange exchange, String format) {
+            this.exchange = exchange;
+            this.format = format;
+        }
+
+        boolean isStarted() {
+            return out != null;
+        }
+
+        private void start() throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", format.equals("ndjson") ? "application/x-ndjson" : "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            out = HgtSink.open(format, "response to " + exchange.getRemoteAddress(), exchange.getResponseBody());
+        }
+
+        @Override
+        public void acceptTree(GeneDistances tree, List<GeneTuple> hgts) throws IOException {
+            if (out == null) {
+                start();
+            }
+            out.acceptTree(tree, hgts);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                start();
+            }
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package core;
+
+import objects.GeneDistances;
+import objects.GeneTuple;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Receives the confirmed HGTs of a run one gene tree at a time, so they can be written while the HGTs of the next
+ * trees are still being confirmed instead of collecting all of them first.
+ */
+public interface HgtSink extends Closeable {
+
+    /**
+     * @param tree gene tree
+     * @param hgts confirmed HGTs of the tree ordered by the identifiers of their genes, may be empty
+     * @throws IOException error writing the HGTs
+     */
+    void acceptTree(GeneDistances tree, List<GeneTuple> hgts) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Opens a sink writing to a file, gzip compressed if the filename ends with .gz
+     *
+     * @param format    dense or sparse nexus, ndjson or tsv
+     * @param filename  output file
+     * @param renderers executor rendering dense matrices, can be shared by all sinks of a run, null to render them
+     *                  on the thread confirming the HGTs
+     * @param threads   amount of threads of renderers
+     * @return the sink
+     * @throws IOException error creating the file
+     */
+    static HgtSink open(String format, String filename, ExecutorService renderers, int threads) throws IOException {
+        switch (format.toLowerCase(Locale.ROOT)) {
+            case "dense":
+                return new NexusWriter.DenseSink(filename, renderers, threads);
+            case "sparse":
+                return new NexusWriter.SparseSink(filename);
+            case "ndjson":
+                return TextHgtSink.ndjson(filename);
+            case "tsv":
+                return TextHgtSink.tsv(filename);
+            default:
+                throw new IllegalArgumentException("Unknown output format " + format);
+        }
+    }
+
+    /**
+     * Opens a sink writing to a stream, for example the response to a request
+     *
+     * @param format sparse nexus, ndjson or tsv, dense matrices can only be written to files
+     * @param name   name of the output used in the log
+     * @param out    output, is closed together with the sink
+     * @return the sink
+     * @throws IOException error writing to the stream
+     */
+    static HgtSink open(String format, String name, OutputStream out) throws IOException {
+        switch (format.toLowerCase(Locale.ROOT)) {
+            case "sparse":
+                return new NexusWriter.SparseSink(name, out);
+            case "ndjson":
+                return TextHgtSink.open(name, out, true);
+            case "tsv":
+                return TextHgtSink.open(name, out, false);
+            default:
+                throw new IllegalArgumentException("Output format " + format + " can't be streamed");
+        }
+    }
+
+    /**
+     * @return sink adding all HGTs to the list
+     */
+    static HgtSink collect(List<GeneTuple> list) {
+        return (tree, hgts) -> list.addAll(hgts);
+    }
+}
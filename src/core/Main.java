@@ -1,14 +1,25 @@
 package core;
 
-import objects.Gene;
+import objects.GeneDistances;
 import objects.GeneTuple;
-import objects.Matrix;
+import objects.NexusFormatException;
 import objects.Species;
+import objects.SpeciesRegistry;
+import objects.SpeciesResult;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,8 +32,22 @@ public class Main {
 
         String filename = null;
         String outputfilename = "output.nex";
-        double percentage = 0.05;
-        boolean multithreading = true;
+        double[] percentages = {0.05};
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        String metricsfilename = null;
+        int metricsInterval = 30;
+        boolean useCache = false;
+        String format = "dense";
+        String incrementalfilename = null;
+        String checkpointfilename = null;
+        int checkpointInterval = 60;
+        boolean resume = false;
+        int shard = 0;
+        int shards = 0;
+        List<String> shardfilenames = null;
+        String resultCacheDirectory = null;
+        long resultCacheSize = 1024;
 
         GeneTuple.RelationType runMode = null;
 
@@ -39,24 +64,96 @@ public class Main {
                 } else if (args[i].equalsIgnoreCase("-v") || args[i].equalsIgnoreCase("-verbose")) {
                     log.setLevel(Level.INFO);
                 } else if (args[i].equalsIgnoreCase("-p")) {
-                    percentage = Double.parseDouble(args[i + 1]);
+                    String[] values = args[i + 1].split(",");
+                    percentages = new double[values.length];
+                    for (int p = 0; p < values.length; p++) {
+                        percentages[p] = Double.parseDouble(values[p].trim());
+                    }
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-threads")) {
+                    threads = Math.max(1, Integer.parseInt(args[i + 1]));
                     i++;
                 } else if (args[i].equalsIgnoreCase("-disableMultithreading") || args[i].equalsIgnoreCase("-dm")) {
-                    multithreading = false;
+                    threads = 1;
+                } else if (args[i].equalsIgnoreCase("-metrics")) {
+                    metricsfilename = args[i + 1];
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-metricsInterval")) {
+                    metricsInterval = Math.max(1, Integer.parseInt(args[i + 1]));
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-format")) {
+                    if (Arrays.asList("dense", "sparse", "ndjson", "tsv").contains(args[i + 1].toLowerCase(Locale.ROOT))) {
+                        format = args[i + 1].toLowerCase(Locale.ROOT);
+                    } else {
+                        log.warning("Unknown output format \"" + args[i + 1] + "\", using dense.");
+                    }
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-cache")) {
+                    useCache = true;
+                } else if (args[i].equalsIgnoreCase("-incremental")) {
+                    incrementalfilename = args[i + 1];
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-checkpoint")) {
+                    checkpointfilename = args[i + 1];
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-checkpointInterval")) {
+                    checkpointInterval = Math.max(0, Integer.parseInt(args[i + 1]));
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-resume")) {
+                    resume = true;
+                } else if (args[i].equalsIgnoreCase("-shard")) {
+                    String[] value = args[i + 1].split("/");
+                    shard = Integer.parseInt(value[0].trim());
+                    shards = Integer.parseInt(value[1].trim());
+                    if (shards < 1 || shard < 1 || shard > shards) {
+                        log.severe("-shard needs k/N with 1 <= k <= N, got \"" + args[i + 1] + "\".");
+                        System.exit(1);
+                    }
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-merge")) {
+                    shardfilenames = Arrays.asList(args[i + 1].split(","));
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-resultCache")) {
+                    resultCacheDirectory = args[i + 1];
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-resultCacheSize")) {
+                    resultCacheSize = Math.max(0, Long.parseLong(args[i + 1]));
+                    i++;
                 } else if (args[i].equalsIgnoreCase("-higher")) {
                     runMode = GeneTuple.RelationType.HIGHER;
                 } else if (args[i].equalsIgnoreCase("-lesser")) {
                     runMode = GeneTuple.RelationType.LESSER;
                 } else if (args[i].equalsIgnoreCase("-h") || args[i].equalsIgnoreCase("-help") || args[i].equalsIgnoreCase("help")) {
                     log.severe("Available parameters\n" +
-                            "-i filename\t\tSpecify input file (Nexus format containing an ALLDISTANCES block)\n" +
+                            "-i filename\t\tSpecify input file (Nexus format containing an ALLDISTANCES block), decompressed while reading\n" +
+                            "\t\t\tif it ends with .gz or .zst (needs the zstd command)\n" +
                             "-o filename\t\tOutput nexus file to export relation matrix to\n" +
+                            "-format dense|sparse|ndjson|tsv\tDense relation matrices (default), only the HGTs as nexus, as JSON lines\n" +
+                            "\t\t\tor as tab separated values, gzip compressed if the output ends with .gz\n" +
                             "-s -silent\t\tRemoves most command line output\n" +
                             "-v -verbose\t\tAdds additional command line output, prints every potential candidate\n" +
                             "-p percentage\t\tPercentage of the distribution of a species to look for HGTs in\n" +
+                            "-p p1,p2,...\t\tSweep over several percentages in one run, writes one output per percentage with _p<percentage> added to its name\n" +
                             "-higher\t\t\tOnly search for HGTs of the HIGHER relation\n" +
                             "-lesser\t\t\tOnly search for HGTs of the LESSER relation\n" +
-                            "-disableMultithreading\tReduces CPU load but also drastically increases runtime\n" +
+                            "-threads n\t\tAmount of worker threads, defaults to the amount of available processors\n" +
+                            "-disableMultithreading\tSame as -threads 1, reduces CPU load but also drastically increases runtime\n" +
+                            "-metrics filename\tExports run metrics to this file, as JSON if it ends with .json, Prometheus text otherwise\n" +
+                            "-metricsInterval s\tSeconds between two progress reports and metrics exports, defaults to 30\n" +
+                            "-cache\t\t\tReads the distances from a binary snapshot (filename.hgtbin) if it is up to date, writes one otherwise\n" +
+                            "-incremental filename\tStores the results of every species in this file and only evaluates again what\n" +
+                            "\t\t\tchanged since the last run with this file, for example after gene trees or species were added\n" +
+                            "-checkpoint filename\tJournals the result of every finished species to this file\n" +
+                            "-checkpointInterval s\tSeconds between two syncs of the journal to the disk, defaults to 60\n" +
+                            "-resume\t\t\tContinues the run journaled with -checkpoint, only evaluates the unfinished species\n" +
+                            "-shard k/N\t\tOnly evaluates the k-th of N parts of the species and writes their candidates to the\n" +
+                            "\t\t\toutput file instead of the HGTs, for running one input in several processes\n" +
+                            "-merge f1,f2,...\tConfirms the HGTs from the shard files f1,f2,... of a run with the same input and\n" +
+                            "\t\t\tparameters and writes them to the output file, species missing in the shards are evaluated\n" +
+                            "-resultCache dir\tKeeps the outputs in this directory by a digest of the input and the parameters and\n" +
+                            "\t\t\tcopies them from there when they are asked for again, a new percentage for a known input\n" +
+                            "\t\t\treuses the distributions stored there\n" +
+                            "-resultCacheSize MB\tSize limit of the result cache, the least recently used entries are removed, defaults to 1024\n" +
                             "-h -help\t\tDisplays this help");
                 } else {
                     log.warning("Didn't recognize parameter \"" + args[i] + "\", skipping...");
@@ -74,43 +171,205 @@ public class Main {
             System.exit(1);
         }
 
-        NexusReaderDistances nr = null;
+        Metrics metrics = new Metrics();
+        metrics.startReporting(metricsfilename, metricsInterval);
+
+        long parseStart = System.nanoTime();
+        SpeciesRegistry registry = new SpeciesRegistry();
+        HashMap<String, GeneDistances> distanceMap = null;
         try {
-            nr = new NexusReaderDistances(filename);
+            distanceMap = Dataset.readDistances(filename, threads, useCache, registry);
         } catch (FileNotFoundException e) {
             log.severe("Couldn't find file " + filename + ", application is exiting!");
             System.exit(1);
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException | NexusFormatException e) {
+            log.severe("Couldn't read " + filename + ": " + e.getMessage() + ", application is exiting!");
+            System.exit(1);
         }
+        metrics.addTime(Metrics.Phase.PARSE, parseStart);
 
-        List<Species> allSpecies = new ArrayList<>();
+        long mergeStart = System.nanoTime();
+        Dataset dataset = new Dataset(filename, distanceMap, registry);
+        List<Species> allSpecies = dataset.getSpecies();
+        metrics.addTime(Metrics.Phase.SPECIES_MERGE, mergeStart);
+        log.warning("Running for " + filename);
 
-        for (String key : nr.getDistanceMap().keySet()) {
-            for (Species s : nr.getDistanceMap().get(key).getSpecies()) {
-                Species fromList = allSpecies.stream().filter(species -> species.getName().equals(s.getName())).findFirst().orElse(null);
-                if (fromList == null) {
-                    allSpecies.add(s);
+        if ((shards > 0 || shardfilenames != null) && percentages.length > 1) {
+            log.severe("-shard and -merge need a single percentage.");
+            System.exit(1);
+        }
+
+        //outputs already in the result cache are copied from there, only the others are computed
+        boolean sweep = percentages.length > 1;
+        ResultCache resultCache = null;
+        SpeciesResultFile.Header header = null;
+        List<String> outputKeys = new ArrayList<>();
+        if (resultCacheDirectory != null && shards == 0 && shardfilenames == null) {
+            try {
+                resultCache = new ResultCache(resultCacheDirectory, resultCacheSize * 1024 * 1024);
+            } catch (IOException e) {
+                log.severe("Couldn't use result cache " + resultCacheDirectory + ": " + e.getMessage());
+            }
+        }
+        if (resultCache != null) {
+            header = SpeciesResultFile.Header.of(distanceMap, allSpecies, runMode, percentages[0]);
+            List<Double> missing = new ArrayList<>();
+            for (double percentage : percentages) {
+                String output = sweep ? getSweepFilename(outputfilename, percentage) : outputfilename;
+                String key = ResultCache.outputKey(header, percentage, format, output);
+                if (!resultCache.fetch(key, output)) {
+                    missing.add(percentage);
+                    outputKeys.add(key);
+                }
+            }
+            percentages = missing.stream().mapToDouble(Double::doubleValue).toArray();
+            if (percentages.length == 0) {
+                metrics.stopReporting(metricsfilename);
+                log.warning("Tool finished.");
+                log.warning("Time elapsed: " + ((System.currentTimeMillis() - start) / 1000F) + " seconds.");
+                return;
+            }
+            header = header.withPercentage(percentages[0]);
+            if (percentages.length == 1 && incrementalfilename == null) {
+                //the best match distances and distributions of an earlier run on this input are reused
+                incrementalfilename = resultCache.getStateFilename(header);
+            }
+        }
+        if ((incrementalfilename != null || checkpointfilename != null) && percentages.length > 1) {
+            log.warning("-incremental and -checkpoint need a single percentage, evaluating everything without them.");
+            incrementalfilename = null;
+            checkpointfilename = null;
+        }
+        if (header == null && (incrementalfilename != null || checkpointfilename != null || shards > 0 || shardfilenames != null)) {
+            header = SpeciesResultFile.Header.of(distanceMap, allSpecies, runMode, percentages[0]);
+        }
+        PreviousRun previous = null;
+        SpeciesResultFile.Writer state = null;
+        SpeciesResultFile.Writer journal = null;
+        if (incrementalfilename != null) {
+            previous = PreviousRun.load(incrementalfilename, header);
+            try {
+                state = new SpeciesResultFile.Writer(incrementalfilename + ".tmp", header);
+            } catch (IOException e) {
+                log.severe("Couldn't write " + incrementalfilename + ".tmp: " + e.getMessage());
+            }
+        }
+        if (checkpointfilename != null) {
+            PreviousRun resumed = resume ? PreviousRun.load(checkpointfilename, header) : null;
+            try {
+                if (resumed != null && resumed.isSameInput()) {
+                    //continue the journal, only the species that aren't in it yet are evaluated
+                    previous = resumed;
+                    journal = SpeciesResultFile.Writer.append(checkpointfilename, resumed.getValidLength(), resumed.getSpecies());
                 } else {
-                    fromList.getGenes().addAll(s.getGenes());
+                    if (resume) {
+                        log.warning("Can't resume from " + checkpointfilename + ", starting from the beginning.");
+                    }
+                    journal = new SpeciesResultFile.Writer(checkpointfilename, header);
                 }
+                journal.setSyncInterval(checkpointInterval * 1000L);
+            } catch (IOException e) {
+                log.severe("Couldn't write checkpoints to " + checkpointfilename + ": " + e.getMessage());
             }
-            nr.getDistanceMap().get(key).getDistances().changeFormat(Matrix.MatrixFormat.BOTH);
+        } else if (resume) {
+            log.warning("-resume needs the journal given with -checkpoint, evaluating everything.");
+        }
 
-            for (int indexOfGeneThatNeedsDistances = 0; indexOfGeneThatNeedsDistances < nr.getDistanceMap().get(key).getGenes().size(); indexOfGeneThatNeedsDistances++) {
-                for (int indexOfDistanceValue = 0; indexOfDistanceValue < nr.getDistanceMap().get(key).getGenes().size(); indexOfDistanceValue++) {
-                    nr.getDistanceMap().get(key).getGenes().get(indexOfGeneThatNeedsDistances).getDistances().put(
-                            nr.getDistanceMap().get(key).getGenes().get(indexOfDistanceValue),
-                            nr.getDistanceMap().get(key).getDistances().get(indexOfGeneThatNeedsDistances).get(indexOfDistanceValue));
+        if (shardfilenames != null) {
+            previous = PreviousRun.loadShards(shardfilenames, header);
+            int missing = 0;
+            for (Species s : allSpecies) {
+                if (s.getGenes().size() > 1 && previous.getResult(s) == null) {
+                    missing++;
                 }
             }
+            if (missing > 0) {
+                log.warning(missing + " species are missing in the shards, evaluating them here.");
+            }
         }
 
-        allSpecies.sort(Comparator.comparing(Species::getName));
-        allSpecies.forEach(s -> s.getGenes().sort(Comparator.comparing(Gene::getId)));
-        log.warning("Running for " + filename);
-        List<GeneTuple> foundHgts = DistributionAlgorithm.runAlgorithm(allSpecies, percentage, multithreading, runMode);
-        NexusWriter.writeHgtsToFile(outputfilename, nr.getDistanceMap(), foundHgts); //when disabling the following evaluate block uncomment this
+        SpeciesResultFile.Writer shardFile = null;
+        List<HgtSink> sinks = new ArrayList<>();
+        //one executor renders the dense matrices of all percentages
+        ExecutorService renderers = shards == 0 && format.equals("dense") && threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            if (shards > 0) {
+                try {
+                    shardFile = new SpeciesResultFile.Writer(outputfilename, header);
+                    shardFile.setStoreBestMatchDistances(false);
+                } catch (IOException e) {
+                    log.severe("Couldn't write shard file " + outputfilename + ": " + e.getMessage());
+                    System.exit(1);
+                }
+                DistributionAlgorithm.evaluateShard(allSpecies, percentages[0], threads, runMode, metrics, shard - 1, shards, previous, recordTo(state, journal, shardFile));
+            } else {
+                //the HGTs are written tree by tree while they are confirmed
+                for (double percentage : percentages) {
+                    sinks.add(HgtSink.open(format, sweep ? getSweepFilename(outputfilename, percentage) : outputfilename, renderers, threads));
+                }
+                HgtDetector.builder(dataset)
+                        .percentages(percentages)
+                        .runMode(runMode)
+                        .threads(threads)
+                        .metrics(metrics)
+                        .previous(previous)
+                        .results(recordTo(state, journal))
+                        .sinks(sinks)
+                        .build()
+                        .run();
+            }
+        } catch (IOException e) {
+            log.severe("Couldn't write output file " + outputfilename + ": " + e.getMessage());
+            resultCache = null;
+        }
+        try {
+            if (journal != null) {
+                journal.sync();
+                journal.close();
+            }
+        } catch (IOException e) {
+            log.severe("Couldn't write checkpoints to " + checkpointfilename + ": " + e.getMessage());
+        }
+        if (state != null) {
+            try {
+                state.close();
+                Files.move(Paths.get(incrementalfilename + ".tmp"), Paths.get(incrementalfilename), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                log.severe("Couldn't write " + incrementalfilename + ": " + e.getMessage());
+            }
+        }
+        long writeStart = System.nanoTime();
+        if (shardFile != null) {
+            try {
+                shardFile.close();
+                log.warning("Wrote the candidates of shard " + shard + "/" + shards + " to " + outputfilename);
+            } catch (IOException e) {
+                log.severe("Couldn't write shard file " + outputfilename + ": " + e.getMessage());
+            }
+        }
+        for (HgtSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                log.severe("Couldn't write output file " + outputfilename + ": " + e.getMessage());
+                resultCache = null;
+            }
+        }
+        if (renderers != null) {
+            renderers.shutdown();
+        }
+        metrics.addTime(Metrics.Phase.WRITE, writeStart);
+        if (resultCache != null) {
+            for (int p = 0; p < percentages.length; p++) {
+                String output = sweep ? getSweepFilename(outputfilename, percentages[p]) : outputfilename;
+                try {
+                    resultCache.store(outputKeys.get(p), output);
+                } catch (IOException e) {
+                    log.warning("Couldn't add " + output + " to the result cache: " + e.getMessage());
+                }
+            }
+        }
+        metrics.stopReporting(metricsfilename);
 
         // start of debugging block to load an additional file which contains the true relations, only for testing purposes with ALFSim
 //        NexusReaderDistances nrOut = null;
@@ -155,19 +414,56 @@ public class Main {
 //        allSpeciesOut.sort(Comparator.comparing(Species::getName));
 //        allSpeciesOut.forEach(s -> s.getGenes().sort(Comparator.comparing(Gene::getId)));
 //        log.warning("Running for " + outFileName);
-//        List<GeneTuple> foundHgtsOut = DistributionAlgorithm.runAlgorithm(allSpeciesOut, percentage, multithreading, runMode);
+//        List<GeneTuple> foundHgtsOut = DistributionAlgorithm.runAlgorithm(allSpeciesOut, percentage, threads, runMode, metrics);
 //        NexusWriter.writeHgtsToFile("tmp", nrOut.getDistanceMap(), foundHgtsOut);
 //
 //        if (outputfilename != null) {
-//            NexusWriter.writeHgtsToFile(outputfilename, nr.getDistanceMap(), foundHgts);
+//            NexusWriter.writeHgtsToFile(outputfilename, distanceMap, foundHgts);
 //            log.setLevel(Level.WARNING);
-//            Utils.evaluateResults(allSpeciesOut, nrOut.getGenesWithRCBRelations());
+//            Utils.evaluateResults(allSpeciesOut, foundHgtsOut, nrOut.getGenesWithRCBRelations());
 //
-//            Utils.evaluateResults(allSpecies, nrOut.getGenesWithRCBRelations());
+//            Utils.evaluateResults(allSpecies, foundHgts, nrOut.getGenesWithRCBRelations());
 //        }
 
         log.warning("Tool finished.");
 
         log.warning("Time elapsed: " + ((System.currentTimeMillis() - start) / 1000F) + " seconds.");
     }
+
+    /**
+     * @return consumer appending every species result to all given files that are not null, null if there are none
+     */
+    private static Consumer<SpeciesResult> recordTo(SpeciesResultFile.Writer... writers) {
+        List<SpeciesResultFile.Writer> files = new ArrayList<>();
+        for (SpeciesResultFile.Writer writer : writers) {
+            if (writer != null) {
+                files.add(writer);
+            }
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        return result -> {
+            for (SpeciesResultFile.Writer file : files) {
+                try {
+                    file.append(result);
+                } catch (IOException e) {
+                    Logger.getGlobal().warning("Couldn't store the result of species " + result.getSpecies() + ", it will be evaluated again next time: " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * @return filename of the output of one percentage of a sweep, for example output_p0.05.nex for output.nex
+     */
+    static String getSweepFilename(String filename, double percentage) {
+        String suffix = filename.toLowerCase(Locale.ROOT).endsWith(".gz") ? filename.substring(filename.length() - 3) : "";
+        String name = filename.substring(0, filename.length() - suffix.length());
+        int extension = name.lastIndexOf('.');
+        if (extension <= Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'))) {
+            extension = name.length();
+        }
+        return name.substring(0, extension) + "_p" + percentage + name.substring(extension) + suffix;
+    }
 }
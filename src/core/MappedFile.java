@@ -0,0 +1,160 @@
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Read only memory mapping of a whole file. A MappedByteBuffer is limited to 2 GB, so the file is mapped in windows
+ * of 1 GB. Streams over any range of the file can be opened by several threads at once, they only use absolute reads.
+ */
+public class MappedFile implements Closeable {
+
+    private static final int WINDOW_BITS = 30;
+    static final long WINDOW_SIZE = 1L << WINDOW_BITS;
+    private static final int SAMPLES = 64;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] windows;
+
+    public MappedFile(String filePath) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) >>> WINDOW_BITS)];
+        for (int i = 0; i < windows.length; i++) {
+            long start = i * WINDOW_SIZE;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Opens a stream over a part of the file
+     *
+     * @param start first byte (inclusive)
+     * @param end   last byte (exclusive)
+     * @return InputStream reading directly from the mapping
+     */
+    public InputStream openStream(long start, long end) {
+        return new InputStream() {
+            private long position = start;
+
+            @Override
+            public int read() {
+                if (position >= end) {
+                    return -1;
+                }
+                int value = windows[(int) (position >>> WINDOW_BITS)].get((int) (position & (WINDOW_SIZE - 1))) & 0xFF;
+                position++;
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= end) {
+                    return -1;
+                }
+                int index = (int) (position & (WINDOW_SIZE - 1));
+                MappedByteBuffer window = windows[(int) (position >>> WINDOW_BITS)];
+                int count = (int) Math.min(Math.min(len, end - position), window.limit() - index);
+                window.get(index, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, end - position));
+                position += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Copies big endian doubles from the file into an array
+     *
+     * @param offset position of the first double in the file, has to be a multiple of 8 so no double crosses windows
+     * @param target array to copy to
+     * @param from   first index in target
+     * @param count  amount of doubles
+     */
+    public void readDoubles(long offset, double[] target, int from, int count) {
+        if (offset % Double.BYTES != 0) {
+            throw new IllegalArgumentException("Doubles have to be aligned to 8 bytes, offset: " + offset);
+        }
+        while (count > 0) {
+            int index = (int) (offset & (WINDOW_SIZE - 1));
+            MappedByteBuffer window = windows[(int) (offset >>> WINDOW_BITS)];
+            int inWindow = Math.min(count, (window.limit() - index) / Double.BYTES);
+            if (inWindow == 0) {
+                throw new IllegalArgumentException("Reading doubles beyond the end of the file");
+            }
+            window.slice(index, inWindow * Double.BYTES).order(ByteOrder.BIG_ENDIAN).asDoubleBuffer().get(target, from, inWindow);
+            offset += (long) inWindow * Double.BYTES;
+            from += inWindow;
+            count -= inWindow;
+        }
+    }
+
+    /**
+     * View of big endian doubles in the file, the values are read from the mapping instead of being copied
+     *
+     * @param offset position of the first double in the file, has to be a multiple of 8
+     * @param count  amount of doubles
+     * @return the doubles, null if they don't lie within one window of the mapping
+     */
+    public DoubleBuffer viewDoubles(long offset, long count) {
+        if (offset % Double.BYTES != 0) {
+            throw new IllegalArgumentException("Doubles have to be aligned to 8 bytes, offset: " + offset);
+        }
+        if (count == 0) {
+            return DoubleBuffer.allocate(0);
+        }
+        long window = offset >>> WINDOW_BITS;
+        int index = (int) (offset & (WINDOW_SIZE - 1));
+        if (window >= windows.length || count * Double.BYTES > windows[(int) window].limit() - index) {
+            return null;
+        }
+        return windows[(int) window].slice(index, (int) (count * Double.BYTES)).order(ByteOrder.BIG_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * Checksum that stays cheap for files of any size: CRC32C over the size and at most SAMPLES evenly spaced blocks
+     * of SAMPLE_SIZE bytes, including the first and the last one. Small files are covered completely.
+     *
+     * @return the checksum
+     */
+    public long sampledChecksum() {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+        byte[] block = new byte[SAMPLE_SIZE];
+        long blocks = (size + SAMPLE_SIZE - 1) / SAMPLE_SIZE;
+        for (long i = 0; i < Math.min(SAMPLES, blocks); i++) {
+            //blocks start at multiples of SAMPLE_SIZE, so none of them crosses windows
+            long start = (blocks <= SAMPLES ? i : (blocks - 1) * i / (SAMPLES - 1)) * SAMPLE_SIZE;
+            int length = (int) Math.min(SAMPLE_SIZE, size - start);
+            windows[(int) (start >>> WINDOW_BITS)].get((int) (start & (WINDOW_SIZE - 1)), block, 0, length);
+            crc.update(block, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
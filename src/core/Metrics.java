@@ -0,0 +1,238 @@
+package core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.DecimalFormat;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counters and phase timers of one run. All values are striped LongAdders, so worker threads can update them without
+ * contention. The metrics can be exported as JSON or Prometheus text, once at the end and periodically during a run.
+ */
+public class Metrics {
+
+    /**
+     * Phases of a run, the time of a phase is summed over all threads working on it
+     */
+    public enum Phase {
+        PARSE, SPECIES_MERGE, BEST_MATCH, DISTRIBUTION, CANDIDATE_SEARCH, MUTUAL_RESOLUTION, WRITE;
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final long startNanos;
+    private final Map<Phase, LongAdder> phaseNanos;
+    private final Map<Phase, LongAdder> phaseCalls;
+    private final LongAdder genesProcessed;
+    private final LongAdder genesTotal;
+    private final Map<String, LongAdder> speciesGenes;
+    private final Map<String, LongAdder> speciesNanos;
+    private ScheduledExecutorService reporter;
+
+    public Metrics() {
+        this.startNanos = System.nanoTime();
+        this.phaseNanos = new EnumMap<>(Phase.class);
+        this.phaseCalls = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+            phaseCalls.put(phase, new LongAdder());
+        }
+        this.genesProcessed = new LongAdder();
+        this.genesTotal = new LongAdder();
+        this.speciesGenes = new ConcurrentHashMap<>();
+        this.speciesNanos = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds the time since startNanos to the given phase
+     *
+     * @param phase      phase that was worked on
+     * @param startNanos value of System.nanoTime() when the work started
+     */
+    public void addTime(Phase phase, long startNanos) {
+        phaseNanos.get(phase).add(System.nanoTime() - startNanos);
+        phaseCalls.get(phase).increment();
+    }
+
+    /**
+     * Counts one finished gene of the given species and adds the time spent on it
+     *
+     * @param species    name of the species
+     * @param startNanos value of System.nanoTime() when the work on the gene started
+     */
+    public void geneProcessed(String species, long startNanos) {
+        genesProcessed.increment();
+        speciesGenes.computeIfAbsent(species, key -> new LongAdder()).increment();
+        speciesNanos.computeIfAbsent(species, key -> new LongAdder()).add(System.nanoTime() - startNanos);
+    }
+
+    public void addGenesTotal(long genes) {
+        genesTotal.add(genes);
+    }
+
+    public long getGenesProcessed() {
+        return genesProcessed.sum();
+    }
+
+    public long getGenesTotal() {
+        return genesTotal.sum();
+    }
+
+    /**
+     * Starts a daemon thread which logs the progress and, if a filename is given, exports the metrics every interval
+     *
+     * @param filename        file to export to, ending with .json for JSON and Prometheus text otherwise, may be null
+     * @param intervalSeconds seconds between two reports
+     */
+    public void startReporting(String filename, int intervalSeconds) {
+        Logger log = Logger.getGlobal();
+        DecimalFormat df = new DecimalFormat("###.##");
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            long processed = getGenesProcessed();
+            long total = getGenesTotal();
+            if (total > 0 && processed < total) {
+                log.warning("Processed " + processed + "/" + total + " genes (" + df.format(((double) processed / total) * 100) + "%)");
+            }
+            if (filename != null) {
+                export(filename);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic reports and, if a filename is given, exports the final metrics after a periodic export that
+     * is still running finished, so the final one is never overwritten
+     *
+     * @param filename file to export to, may be null
+     */
+    public void stopReporting(String filename) {
+        if (reporter != null) {
+            reporter.shutdown();
+            try {
+                if (!reporter.awaitTermination(10, TimeUnit.SECONDS)) {
+                    Logger.getGlobal().warning("The last periodic metrics export didn't finish in time.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reporter = null;
+        }
+        if (filename != null) {
+            export(filename);
+        }
+    }
+
+    /**
+     * Writes the metrics to a temporary file first and moves it over the old export, so readers never see half a file.
+     * Every export uses its own temporary file in the same directory, so exports running at the same time don't
+     * write into each other.
+     *
+     * @param filename file to export to, ending with .json for JSON and Prometheus text otherwise
+     */
+    public void export(String filename) {
+        String content = filename.toLowerCase(Locale.ROOT).endsWith(".json") ? toJson() : toPrometheus();
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Couldn't write metrics to file " + filename);
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException ignored) {
+                //nothing left to do
+            }
+        }
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"uptime_seconds\": ").append(seconds(System.nanoTime() - startNanos)).append(",\n");
+        sb.append("  \"genes_processed\": ").append(getGenesProcessed()).append(",\n");
+        sb.append("  \"genes_total\": ").append(getGenesTotal()).append(",\n");
+        sb.append("  \"phases\": {");
+        String separator = "\n";
+        for (Phase phase : Phase.values()) {
+            sb.append(separator).append("    \"").append(phase.label()).append("\": {\"seconds\": ")
+                    .append(seconds(phaseNanos.get(phase).sum())).append(", \"calls\": ").append(phaseCalls.get(phase).sum()).append("}");
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"species\": {");
+        separator = "\n";
+        for (Map.Entry<String, long[]> entry : speciesSnapshot().entrySet()) {
+            sb.append(separator).append("    \"").append(Utils.escape(entry.getKey())).append("\": {\"genes\": ")
+                    .append(entry.getValue()[0]).append(", \"seconds\": ").append(seconds(entry.getValue()[1])).append("}");
+            separator = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP hgt_uptime_seconds Seconds since the run started\n# TYPE hgt_uptime_seconds gauge\n");
+        sb.append("hgt_uptime_seconds ").append(seconds(System.nanoTime() - startNanos)).append("\n");
+        sb.append("# HELP hgt_genes_processed_total Genes whose candidates have been searched\n# TYPE hgt_genes_processed_total counter\n");
+        sb.append("hgt_genes_processed_total ").append(getGenesProcessed()).append("\n");
+        sb.append("# HELP hgt_genes Genes of all species\n# TYPE hgt_genes gauge\n");
+        sb.append("hgt_genes ").append(getGenesTotal()).append("\n");
+        sb.append("# HELP hgt_phase_seconds_total Time spent per phase, summed over all threads\n# TYPE hgt_phase_seconds_total counter\n");
+        for (Phase phase : Phase.values()) {
+            sb.append("hgt_phase_seconds_total{phase=\"").append(phase.label()).append("\"} ").append(seconds(phaseNanos.get(phase).sum())).append("\n");
+        }
+        sb.append("# HELP hgt_phase_calls_total Recorded units of work per phase\n# TYPE hgt_phase_calls_total counter\n");
+        for (Phase phase : Phase.values()) {
+            sb.append("hgt_phase_calls_total{phase=\"").append(phase.label()).append("\"} ").append(phaseCalls.get(phase).sum()).append("\n");
+        }
+        Map<String, long[]> species = speciesSnapshot();
+        sb.append("# HELP hgt_species_genes_processed_total Processed genes per species\n# TYPE hgt_species_genes_processed_total counter\n");
+        for (Map.Entry<String, long[]> entry : species.entrySet()) {
+            sb.append("hgt_species_genes_processed_total{species=\"").append(Utils.escape(entry.getKey())).append("\"} ").append(entry.getValue()[0]).append("\n");
+        }
+        sb.append("# HELP hgt_species_seconds_total Time spent on the genes of a species\n# TYPE hgt_species_seconds_total counter\n");
+        for (Map.Entry<String, long[]> entry : species.entrySet()) {
+            sb.append("hgt_species_seconds_total{species=\"").append(Utils.escape(entry.getKey())).append("\"} ").append(seconds(entry.getValue()[1])).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return species name mapped to {processed genes, nanoseconds}, sorted by name
+     */
+    private Map<String, long[]> speciesSnapshot() {
+        Map<String, long[]> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : speciesGenes.entrySet()) {
+            LongAdder nanos = speciesNanos.get(entry.getKey());
+            snapshot.put(entry.getKey(), new long[]{entry.getValue().sum(), nanos == null ? 0 : nanos.sum()});
+        }
+        return snapshot;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+}
@@ -6,358 +6,448 @@ import objects.GeneTuple;
 import objects.Matrix;
 import objects.NexusFormatException;
 import objects.Species;
+import objects.SpeciesRegistry;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class NexusReaderDistances {
 
     private HashMap<String, GeneDistances> distanceMap;
+    private final SpeciesRegistry registry;
 
     private List<Gene> genesWithRCBRelations = new ArrayList<>();
 
+    //state of the ALLDISTANCES block, 0=out of command, 1=in config, 2=in matrix, 3=end of matrix
+    private int distancesState;
+    private String distancesName;
+    private Matrix.MatrixFormat distancesFormat;
+    private DistanceMatrixReader curMatrix;
+    private final List<Future<GeneDistances>> pendingMatrices = new ArrayList<>();
+
+    //only set while the matrices are parsed in parallel
+    private MappedFile mappedFile;
+    private ExecutorService matrixParser;
+    private long matrixStart;
+    private int matrixFirstLine;
+    private boolean matrixStartsInComment;
+
+    //state of the RELATIONS block, 0=out of command, 1=in config, 2=in matrix, 3=end of matrix
+    private int relationsState;
+    private boolean rcb;
+    private String relationsName;
+    private Matrix.MatrixFormat relationsFormat;
+    private List<Gene> genesInCurrentTree;
+
     /**
-     * Opens a nexus file and reads in all data that is important to this program.
+     * Opens a nexus file and reads in all data that is important to this program. The file is read in a single
+     * pass, the rows of every distance matrix are stored as soon as they are read. Files ending with .gz or .zst are
+     * decompressed while they are read.
      *
      * @param filePath path to the nexus file
      * @throws IOException          error reading the file
      * @throws NexusFormatException error parsing the file
      */
     public NexusReaderDistances(String filePath) throws IOException, NexusFormatException {
+        this(filePath, 1);
+    }
 
-        BufferedReader bufferedReader = null;
-        FileReader fileReader = null;
-        try {
-            fileReader = new FileReader(filePath);
-            bufferedReader = new BufferedReader(fileReader);
+    /**
+     * Opens a nexus file and reads in all data that is important to this program. With more than one thread the file
+     * is memory mapped. The rows of a distance matrix aren't tokenized while reading, the end of the matrix is found
+     * in the raw bytes and the rows are parsed in parallel while the scan goes on. Compressed files are always read
+     * in a single pass.
+     *
+     * @param filePath path to the nexus file
+     * @param threads  amount of threads parsing distance matrices
+     * @throws IOException          error reading the file
+     * @throws NexusFormatException error parsing the file
+     */
+    public NexusReaderDistances(String filePath, int threads) throws IOException, NexusFormatException {
+        this(filePath, threads, new SpeciesRegistry());
+    }
 
-            int state = 0; //0=start of file, 1=after #NEXUS. 2=inside block
-            boolean commentMode = false;
-            TreeMap<Integer, String> blockLines = null;
-            String blockName = null;
-            Matcher beginBlockMatcher = Pattern.compile("^(?i)BEGIN ([A-Z]+);").matcher("");
-            String line = bufferedReader.readLine();
-            int lineNumber = 0;
-            while (line != null) {
-                lineNumber++;
-                line = line.trim();
-                //end multiline comments
-                if (commentMode) {
-                    int endIndex = line.indexOf("]");
-                    if (endIndex == -1) {
-                        line = bufferedReader.readLine();
-                        continue;
+    /**
+     * Opens a nexus file like NexusReaderDistances(filePath, threads), but interns the species in the given registry
+     *
+     * @param filePath path to the nexus file
+     * @param threads  amount of threads parsing distance matrices
+     * @param registry registry giving every species its id
+     * @throws IOException          error reading the file
+     * @throws NexusFormatException error parsing the file
+     */
+    public NexusReaderDistances(String filePath, int threads, SpeciesRegistry registry) throws IOException, NexusFormatException {
+        this.registry = registry;
+        if (threads <= 1 || DecompressingInputStream.isCompressed(filePath)) {
+            //compressed files can't be mapped, they are decompressed on an own thread while this one parses
+            try (NexusTokenizer tokenizer = new NexusTokenizer(DecompressingInputStream.open(filePath))) {
+                read(tokenizer);
+            }
+            collectMatrices();
+            return;
+        }
+        mappedFile = new MappedFile(filePath);
+        matrixParser = Executors.newFixedThreadPool(threads);
+        try (NexusTokenizer tokenizer = new NexusTokenizer(mappedFile.openStream(0, mappedFile.size()))) {
+            read(tokenizer);
+            collectMatrices();
+        } finally {
+            matrixParser.shutdownNow();
+            mappedFile.close();
+            matrixParser = null;
+            mappedFile = null;
+        }
+    }
+
+    private void read(NexusTokenizer tokenizer) throws IOException, NexusFormatException {
+        int state = 0; //0=start of file, 1=after #NEXUS. 2=inside block
+        String blockName = null;
+        while (tokenizer.nextLine()) {
+            int lineNumber = tokenizer.getLineNumber();
+            //===read lines===
+            switch (state) { //0=start of file, 1=after #NEXUS. 2=inside block
+                case 0:
+                    if (!tokenizer.lineEqualsIgnoreCase("#NEXUS")) {
+                        throw new NexusFormatException("File must start with #NEXUS. Line: " + lineNumber);
+                    } else {
+                        state++;
+                    }
+                    break;
+                case 1:
+                    blockName = parseBeginStatement(tokenizer.line());
+                    if (blockName != null) {
+                        startBlock(blockName);
+                        state++;
                     } else {
-                        line = line.substring(endIndex);
-                        commentMode = false;
+                        throw new NexusFormatException("Error parsing BEGIN statement. Line " + lineNumber);
                     }
-                }
-                //remove one line comments
-                line = line.replaceAll("\\[.*]", "");
-                //remove multi line comments
-                int startIndex = line.indexOf("[");
-                if (startIndex != -1) {
-                    line = line.substring(0, startIndex);
-                    commentMode = true;
-                }
-                //skip emtpy lines
-                if (line.isEmpty()) {
-                    line = bufferedReader.readLine();
-                    continue;
-                }
+                    break;
+                case 2:
+                    if (tokenizer.lineEqualsIgnoreCase("END;")) {
+                        state--;
+                    } else if (blockName.equalsIgnoreCase("ALLDISTANCES")) {
+                        readAllDistancesLine(tokenizer);
+                    } else if (blockName.equalsIgnoreCase("RELATIONS")) {
+                        readRelationsLine(tokenizer);
+                    }
+                    //ignore unknown blocks
+                    break;
+                default:
+                    throw new RuntimeException("NexusReader reached illegal state: " + state);
+            }
+        }
+        if (state == 2) {
+            throw new NexusFormatException("Didn't close block at end of file.");
+        }
+        if (state == 0) {
+            throw new NexusFormatException("File seems empty.");
+        }
+    }
 
-                //===read lines===
-                switch (state) { //0=start of file, 1=after #NEXUS. 2=inside block
-                    case 0:
-                        if (!line.equalsIgnoreCase("#NEXUS")) {
-                            throw new NexusFormatException("File must start with #NEXUS. Line: " + lineNumber);
-                        } else {
-                            state++;
-                        }
-                        break;
-                    case 1:
-                        beginBlockMatcher.reset(line);
-                        if (beginBlockMatcher.matches()) {
-                            blockLines = new TreeMap<Integer, String>();
-                            blockName = beginBlockMatcher.group(1);
-                            state++;
-                        } else {
-                            throw new NexusFormatException("Error parsing BEGIN statement. Line " + lineNumber);
-                        }
-                        break;
-                    case 2:
-                        if (line.equalsIgnoreCase("END;")) {
-                            makeBlock(blockName, blockLines);
-                            state--;
-                        } else {
-                            blockLines.put(lineNumber, line);
-                        }
-                        break;
-                    default:
-                        throw new RuntimeException("NexusReader reached illegal state: " + state);
+    /**
+     * Waits for all distance matrices and adds them to the map in the order of the file
+     */
+    private void collectMatrices() throws IOException, NexusFormatException {
+        for (Future<GeneDistances> matrix : pendingMatrices) {
+            GeneDistances distances;
+            try {
+                distances = matrix.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing distance matrices", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof NexusFormatException) {
+                    throw (NexusFormatException) e.getCause();
+                } else if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
                 }
-
-                line = bufferedReader.readLine();
-            }
-            if (state == 2) {
-                throw new NexusFormatException("Didn't close block at end of file.");
+                throw new RuntimeException(e.getCause());
             }
-            if (state == 0) {
-                throw new NexusFormatException("File seems empty.");
-            }
-
-            bufferedReader.close();
+            distanceMap.put(distances.getTreeName(), distances);
+        }
+        pendingMatrices.clear();
+    }
 
-        } catch (IOException e) {
-            if (bufferedReader != null) {
-                bufferedReader.close();
-            }
-            if (fileReader != null) {
-                fileReader.close();
-            }
-            throw e;
-        } catch (NexusFormatException e) {
-            if (bufferedReader != null) {
-                bufferedReader.close();
-            }
-            if (fileReader != null) {
-                fileReader.close();
+    /**
+     * Matches "BEGIN name;" where name consists of letters only, ignoring case
+     *
+     * @param line line without comments and surrounding whitespace
+     * @return name of the block, null if the line isn't a BEGIN statement
+     */
+    private static String parseBeginStatement(String line) {
+        if (line.length() < 8 || !line.regionMatches(true, 0, "BEGIN ", 0, 6) || line.charAt(line.length() - 1) != ';') {
+            return null;
+        }
+        String name = line.substring(6, line.length() - 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toUpperCase(name.charAt(i));
+            if (c < 'A' || c > 'Z') {
+                return null;
             }
-            throw e;
         }
+        return name;
     }
 
-
-    private void makeBlock(String blockName, Map<Integer, String> lines)
-            throws NexusFormatException {
+    private void startBlock(String blockName) {
         if (blockName.equalsIgnoreCase("ALLDISTANCES")) {
-            readInAllDistances(lines);
+            if (distanceMap == null) {
+                distanceMap = new HashMap<String, GeneDistances>();
+            }
+            distancesState = 0;
+            distancesName = null;
+            distancesFormat = null;
+            curMatrix = null;
         } else if (blockName.equalsIgnoreCase("RELATIONS")) {
-            readInRelations(lines);
+            relationsState = 0;
+            rcb = false;
+            relationsName = null;
+            relationsFormat = null;
+            genesInCurrentTree = null;
         }
-        //ignore unknown blocks
     }
 
-    private void readInAllDistances(Map<Integer, String> lines) throws NexusFormatException {
-        Logger log = Logger.getGlobal();
-        int state = 0; //0=out of command, 1=in config, 2=in matrix, 3=end of matrix
-        if (distanceMap == null) {
-            distanceMap = new HashMap<String, GeneDistances>();
+    private void readAllDistancesLine(NexusTokenizer tokenizer) throws IOException, NexusFormatException {
+        int lineNumber = tokenizer.getLineNumber();
+        tokenizer.nextToken();
+        if (distancesState == 0) {
+            if (!tokenizer.tokenEqualsIgnoreCase("distances")) {
+                //ignore other commands
+                return;
+            }
+            distancesState++;
+            if (!tokenizer.nextToken()) {
+                return;
+            }
         }
+        if (distancesState == 1) {
+            do {
+                String[] data = tokenizer.token().split("=");
+                if (data.length != 2) {
+                    throw new NexusFormatException("No data given to sub-command. Line: " + lineNumber);
+                }
+                if (data[0].equalsIgnoreCase("name")) {
+                    distancesName = data[1];
+                } else if (data[0].equalsIgnoreCase("triangle")) {
+                    try {
+                        distancesFormat = Matrix.MatrixFormat.valueOf(data[1].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new NexusFormatException(
+                                String.format("Matrix format unknown: %s. Line: %d", data[1], lineNumber));
+                    }
+                }
+                //ignore unknown sub-commands
+            } while (tokenizer.nextToken());
 
-        String curName = null;
-        Matrix.MatrixFormat curFormat = null;
-        GeneDistances curDistances = null;
-
-        for (Map.Entry<Integer, String> lineEntry : lines.entrySet()) {
-            int lineNumber = lineEntry.getKey();
-            String line = lineEntry.getValue();
-
-            String[] commands = line.split("\\s+");
-            if (state == 0 && commands[0].equalsIgnoreCase("distances")) {
-                state++;
-                if (commands.length > 1) {
-                    line = line.substring(9);
-                    line = line.trim();
-                    commands = line.split("\\s+");
+            if (distancesName != null && distancesFormat != null) {
+                if (matrixParser == null) {
+                    curMatrix = new DistanceMatrixReader(distancesFormat, distancesName, registry);
                 } else {
-                    continue;
+                    //the matrix starts with the next line, the workers tokenize it, here only its end is searched
+                    matrixStart = tokenizer.getOffset();
+                    matrixFirstLine = lineNumber + 1;
+                    matrixStartsInComment = tokenizer.isInComment();
+                    if (skipMatrix(tokenizer)) {
+                        pendingMatrices.add(submitMatrix(distancesFormat, distancesName, tokenizer.getOffset()));
+                        distancesState = 0;
+                        return;
+                    }
                 }
+                distancesState++;
             }
-            if (state == 1) {
-                for (String command : commands) {
-                    String[] data = command.split("=");
-                    if (data.length != 2) {
-                        throw new NexusFormatException("No data given to sub-command. Line: " + lineNumber);
-                    }
-                    if (data[0].equalsIgnoreCase("name")) {
-                        curName = data[1];
-                    } else if (data[0].equalsIgnoreCase("triangle")) {
-                        try {
-                            curFormat = Matrix.MatrixFormat.valueOf(data[1].toUpperCase());
-                        } catch (IllegalArgumentException e) {
-                            throw new NexusFormatException(
-                                    String.format("Matrix format unknown: %s. Line: %d", data[1], lineNumber));
-                        }
-                    }
-                    //ignore unknown sub-commands
+        } else if (distancesState == 2) {
+            //read in matrix
+            if (tokenizer.lineEquals(";")) {
+                distancesState++;
+            } else {
+                if (curMatrix != null) {
+                    curMatrix.readRow(tokenizer);
                 }
-
-                if (curName != null && curFormat != null) {
-                    curDistances = new GeneDistances(curFormat, curName);
-                    state++;
+                if (tokenizer.lineEndsWith(';')) {
+                    distancesState++;
                 }
-            } else if (state == 2) {
-                //read in matrix
-                if (line.equals(";")) {
-                    state++;
+            }
+            if (distancesState == 3) {
+                //add distances to map
+                if (curMatrix != null) {
+                    pendingMatrices.add(CompletableFuture.completedFuture(curMatrix.finish(lineNumber)));
+                    curMatrix = null;
                 } else {
-                    String[] speciesAndGeneName = commands[0].split("/");
-                    Species species = curDistances.getSpecies().stream().filter(speciesL -> speciesL.getName().equals(speciesAndGeneName[0])).findFirst().orElse(null);
-                    if (species == null) {
-                        curDistances.getSpecies().add(new Species(speciesAndGeneName[0]));
-                        species = curDistances.getSpecies().stream().filter(speciesL -> speciesL.getName().equals(speciesAndGeneName[0])).findFirst().orElse(null);
-                    }
-                    if (speciesAndGeneName.length == 1) {
-                        log.severe("Malformed entry in input file! Gene tree: " + curName + ", line number: " + lineNumber);
-                        System.exit(1);
-                    }
-                    curDistances.getGenes().add(new Gene(speciesAndGeneName[1], species, curName));
-                    ArrayList<Double> row = new ArrayList<Double>();
-                    for (int i = 1; i < commands.length; i++) {
-                        if (commands[i].equals(";")) {
-                            continue;
-                        } else if (commands[i].endsWith(";")) {
-                            commands[i] = commands[i].replace(";", "");
-                        }
-                        try {
-                            row.add(Double.valueOf(commands[i]));
-                        } catch (NumberFormatException e) {
-                            throw new NexusFormatException("Cannot read double number. Line: " + lineNumber, e);
+                    pendingMatrices.add(submitMatrix(distancesFormat, distancesName, tokenizer.getOffset()));
+                }
+                //accept new ones
+                distancesState = 0;
+            }
+        }
+        //ignore other commands
+    }
+
+    /**
+     * Scans the raw bytes of the mapped file from matrixStart for the end of the matrix: the first semicolon outside
+     * of [comments] and 'quotes' ends it together with its line. The tokenizer continues after that line.
+     *
+     * @return false if the matrix isn't closed until the end of the file, the tokenizer is at the end then
+     */
+    private boolean skipMatrix(NexusTokenizer tokenizer) throws IOException {
+        boolean inComment = matrixStartsInComment;
+        boolean inQuote = false;
+        boolean closed = false;
+        boolean lineStarted = false;
+        int lines = 0;
+        long offset = matrixStart;
+        byte[] chunk = new byte[1 << 16];
+        try (InputStream in = mappedFile.openStream(matrixStart, mappedFile.size())) {
+            int read;
+            scan:
+            while ((read = in.read(chunk, 0, chunk.length)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = chunk[i];
+                    if (b == '\n') {
+                        lines++;
+                        lineStarted = false;
+                        if (closed) {
+                            offset += i + 1;
+                            break scan;
                         }
+                        continue;
                     }
-                    curDistances.getDistances().add(row);
-
-                    if (line.endsWith(";")) {
-                        state++;
+                    lineStarted = true;
+                    if (inComment) {
+                        inComment = b != ']';
+                    } else if (inQuote) {
+                        inQuote = b != '\'';
+                    } else if (b == '[') {
+                        inComment = true;
+                    } else if (b == '\'') {
+                        inQuote = true;
+                    } else if (b == ';') {
+                        closed = true;
                     }
                 }
-                if (state == 3) {
-                    //add distances to map
-                    distanceMap.put(curName, curDistances);
-                    //accept new ones
-                    state = 0;
-                }
+                offset += read;
             }
-            //ignore other commands
         }
+        if (lineStarted) {
+            //the last line of the file has no line break, it still counts as a line
+            lines++;
+        }
+        tokenizer.skipTo(offset, lines, inComment);
+        return closed;
     }
 
-    private void readInRelations(Map<Integer, String> lines)
-            throws NexusFormatException {
-
-        int state = 0; //0=out of command, 1=in config, 2=in matrix, 3=end of matrix
-        //relationMap = new HashMap<GeneRelationType, List<GeneRelation>>();
-        boolean rcb = false;
-
-        //GeneRelationType curType = null;
-        String curName = null;
-        Matrix.MatrixFormat curFormat = null;
-
-        List<Gene> genesInCurrentTree = null;
-
-        //GeneRelation curRelation = null;
-        for (Map.Entry<Integer, String> lineEntry : lines.entrySet()) {
-
-            int lineNumber = lineEntry.getKey();
-            String line = lineEntry.getValue();
+    /**
+     * Parses the rows of a distance matrix between matrixStart and end of the mapped file on the thread pool
+     */
+    private Future<GeneDistances> submitMatrix(Matrix.MatrixFormat format, String name, long end) {
+        InputStream rows = mappedFile.openStream(matrixStart, end);
+        int firstLine = matrixFirstLine;
+        boolean startsInComment = matrixStartsInComment;
+        return matrixParser.submit(() -> {
+            try (NexusTokenizer tokenizer = new NexusTokenizer(rows, firstLine, startsInComment)) {
+                return new DistanceMatrixReader(format, name, registry).readMatrix(tokenizer);
+            }
+        });
+    }
 
-            String[] commands = line.split("\\s+");
-            if (state == 0 && commands[0].equalsIgnoreCase("relation")) {
-                state++;
-                if (commands.length > 1) {
-                    line = line.substring(9);
-                    line = line.trim();
-                    commands = line.split("\\s+");
-                } else {
-                    continue;
-                }
+    private void readRelationsLine(NexusTokenizer tokenizer) throws NexusFormatException {
+        int lineNumber = tokenizer.getLineNumber();
+        boolean endsWithSemicolon = tokenizer.lineEndsWith(';');
+        boolean onlySemicolon = tokenizer.lineEquals(";");
+        String[] commands = tokenizer.remainingTokens();
+        if (relationsState == 0 && commands[0].equalsIgnoreCase("relation")) {
+            relationsState++;
+            if (commands.length > 1) {
+                commands = Arrays.copyOfRange(commands, 1, commands.length);
+            } else {
+                return;
             }
-            if (state == 1) {
+        }
+        if (relationsState == 1) {
 
-                for (String command : commands) {
-                    String[] data = command.split("=");
-                    if (data.length != 2) {
-                        throw new NexusFormatException("No data given to sub-command. Line: " + lineNumber);
+            for (String command : commands) {
+                String[] data = command.split("=");
+                if (data.length != 2) {
+                    throw new NexusFormatException("No data given to sub-command. Line: " + lineNumber);
+                }
+                if (data[0].equalsIgnoreCase("type")) {
+                    if (data[1].equalsIgnoreCase("rcb")) {
+                        rcb = true;
+                    } else {
+                        rcb = false;
                     }
-                    if (data[0].equalsIgnoreCase("type")) {
-                        if (data[1].equalsIgnoreCase("rcb")) {
-                            rcb = true;
-                        } else {
-                            rcb = false;
-                        }
 
-                    } else if (data[0].equalsIgnoreCase("name")) {
-                        curName = data[1];
-                        if (genesInCurrentTree != null) {
-                            for (int i = 0; i < genesInCurrentTree.size(); i++) {
-                                for (int j = 1; j < genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTreeAsString().length; j++) {
-                                    GeneTuple.RelationType type = GeneTuple.RelationType.EQUAL;
-                                    if (genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTreeAsString()[j].equals("-1")) {
-                                        type = GeneTuple.RelationType.LESSER;
-                                    } else if (genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTreeAsString()[j].equals("1")) {
-                                        type = GeneTuple.RelationType.HIGHER;
-                                    }
-                                    genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTree().add(new GeneTuple(genesInCurrentTree.get(i), genesInCurrentTree.get(j - 1), type));
+                } else if (data[0].equalsIgnoreCase("name")) {
+                    relationsName = data[1];
+                    if (genesInCurrentTree != null) {
+                        for (int i = 0; i < genesInCurrentTree.size(); i++) {
+                            for (int j = 1; j < genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTreeAsString().length; j++) {
+                                GeneTuple.RelationType type = GeneTuple.RelationType.EQUAL;
+                                if (genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTreeAsString()[j].equals("-1")) {
+                                    type = GeneTuple.RelationType.LESSER;
+                                } else if (genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTreeAsString()[j].equals("1")) {
+                                    type = GeneTuple.RelationType.HIGHER;
                                 }
+                                genesInCurrentTree.get(i).getRelationsToOtherGenesInItsTree().add(new GeneTuple(genesInCurrentTree.get(i), genesInCurrentTree.get(j - 1), type));
                             }
                         }
-                        genesInCurrentTree = new ArrayList<>();
-                    } else if (data[0].equalsIgnoreCase("triangle")) {
-                        try {
-                            curFormat = Matrix.MatrixFormat.valueOf(data[1].toUpperCase());
-                        } catch (IllegalArgumentException e) {
-                            throw new NexusFormatException(
-                                    String.format("Matrix format unknown: %s. Line: %d", data[1], lineNumber));
-                        }
                     }
-                    //ignore unknown sub-commands
-                }
-
-                if (curName != null && curFormat != null) {
-                    // = new GeneRelation(curType, curFormat, curName);
-                    state++;
-                }
-            } else if (state == 2) {
-                //read in matrix
-                if (line.equals(";")) {
-                    state++;
-                } else {
-                    Species tmp = new Species(commands[0].split("/")[0]);
-                    Gene gene = new Gene(commands[0].split("/")[1], tmp, curName);
-                    for (int i = 1; i < commands.length; i++) {
-                        if (commands[i].equals(";")) {
-                            continue;
-                        } else if (commands[i].endsWith(";")) {
-                            commands[i] = commands[i].replace(";", "");
-                        }
-                        gene.setRelationsToOtherGenesInItsTreeAsString(commands);
+                    genesInCurrentTree = new ArrayList<>();
+                } else if (data[0].equalsIgnoreCase("triangle")) {
+                    try {
+                        relationsFormat = Matrix.MatrixFormat.valueOf(data[1].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new NexusFormatException(
+                                String.format("Matrix format unknown: %s. Line: %d", data[1], lineNumber));
                     }
-                    if (rcb) {
-                        genesWithRCBRelations.add(gene);
-                        genesInCurrentTree.add(gene);
-                    }
-
-                    //curRelation.getRelation().add(byteList);
+                }
+                //ignore unknown sub-commands
+            }
 
-                    if (line.endsWith(";")) {
-                        state++;
+            if (relationsName != null && relationsFormat != null) {
+                relationsState++;
+            }
+        } else if (relationsState == 2) {
+            //read in matrix
+            if (onlySemicolon) {
+                relationsState++;
+            } else {
+                Species tmp = new Species(commands[0].split("/")[0], registry);
+                Gene gene = new Gene(commands[0].split("/")[1], tmp, relationsName);
+                for (int i = 1; i < commands.length; i++) {
+                    if (commands[i].equals(";")) {
+                        continue;
+                    } else if (commands[i].endsWith(";")) {
+                        commands[i] = commands[i].replace(";", "");
                     }
+                    gene.setRelationsToOtherGenesInItsTreeAsString(commands);
                 }
-                if (state == 3) {
-                    //add relation to list
-                    /*List<GeneRelation> relationList = relationMap.get(curType);
-                    if (relationList == null) {
-                        relationList = new ArrayList<GeneRelation>();
-                        relationMap.put(curType, relationList);
-                    }
-                    relationList.add(curRelation);*/
-                    //accept new ones
-                    state = 0;
+                if (rcb) {
+                    genesWithRCBRelations.add(gene);
+                    genesInCurrentTree.add(gene);
                 }
+
+                if (endsWithSemicolon) {
+                    relationsState++;
+                }
+            }
+            if (relationsState == 3) {
+                //accept new ones
+                relationsState = 0;
             }
-            //ignore other commands
         }
+        //ignore other commands
+    }
 
+    public SpeciesRegistry getSpeciesRegistry() {
+        return registry;
     }
 
     public HashMap<String, GeneDistances> getDistanceMap() {
@@ -0,0 +1,355 @@
+package core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass, character level tokenizer for nexus files. Reads the input in chunks, removes [comments] (also over
+ * multiple lines) while copying a line into a reusable buffer and skips lines that are empty afterwards. The tokens
+ * of a line are separated by whitespace and can be read as String or parsed as double without creating a String.
+ */
+public class NexusTokenizer implements Closeable {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    /**
+     * Largest mantissa that is exactly representable as double, see Clinger's fast path
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int bufferPosition;
+    private int bufferLimit;
+    private long bufferOffset;
+    private boolean endOfInput;
+
+    private byte[] line;
+    private int lineLength;
+    private int lineNumber;
+    private boolean commentMode;
+
+    private int position;
+    private int tokenStart;
+    private int tokenEnd;
+
+    public NexusTokenizer(InputStream in) {
+        this(in, 1, false);
+    }
+
+    /**
+     * Constructor for inputs that are only a part of a file.
+     *
+     * @param in          input, is closed together with the tokenizer
+     * @param firstLine   line number of the first line of the input, used for error messages
+     * @param commentMode true if the input starts inside a comment
+     */
+    public NexusTokenizer(InputStream in, int firstLine, boolean commentMode) {
+        this.in = in;
+        this.buffer = new byte[1 << 16];
+        this.line = new byte[256];
+        this.lineNumber = firstLine - 1;
+        this.commentMode = commentMode;
+    }
+
+    /**
+     * Advances to the next line that isn't empty after removing comments and surrounding whitespace
+     *
+     * @return false if the end of the input was reached
+     * @throws IOException error reading the input
+     */
+    public boolean nextLine() throws IOException {
+        while (readRawLine()) {
+            //trim
+            int start = 0;
+            while (start < lineLength && line[start] <= ' ') {
+                start++;
+            }
+            while (lineLength > start && line[lineLength - 1] <= ' ') {
+                lineLength--;
+            }
+            if (start < lineLength) {
+                if (start > 0) {
+                    System.arraycopy(line, start, line, 0, lineLength - start);
+                    lineLength -= start;
+                }
+                position = 0;
+                tokenStart = 0;
+                tokenEnd = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the next line without comments into the line buffer
+     */
+    private boolean readRawLine() throws IOException {
+        lineLength = 0;
+        boolean readAnything = false;
+        while (true) {
+            if (bufferPosition == bufferLimit) {
+                if (!fillBuffer()) {
+                    if (readAnything) {
+                        lineNumber++;
+                    }
+                    return readAnything;
+                }
+            }
+            readAnything = true;
+            byte b = buffer[bufferPosition++];
+            if (b == '\n') {
+                lineNumber++;
+                return true;
+            }
+            if (commentMode) {
+                if (b == ']') {
+                    commentMode = false;
+                }
+            } else if (b == '[') {
+                commentMode = true;
+            } else {
+                if (lineLength == line.length) {
+                    byte[] grown = new byte[line.length * 2];
+                    System.arraycopy(line, 0, grown, 0, lineLength);
+                    line = grown;
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private boolean fillBuffer() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        bufferOffset += bufferLimit;
+        bufferPosition = 0;
+        bufferLimit = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        while (read == 0) {
+            read = in.read(buffer, 0, buffer.length);
+        }
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        bufferLimit = read;
+        return true;
+    }
+
+    /**
+     * Continues at a later line of the input, the lines in between were handled by someone else
+     *
+     * @param offset      start of the line to continue with, at least getOffset()
+     * @param lines       amount of lines that are skipped
+     * @param commentMode true if the skipped lines end inside a comment
+     * @throws IOException error reading the input
+     */
+    public void skipTo(long offset, int lines, boolean commentMode) throws IOException {
+        long remaining = offset - getOffset();
+        if (remaining <= bufferLimit - bufferPosition) {
+            bufferPosition += (int) remaining;
+        } else {
+            remaining -= bufferLimit - bufferPosition;
+            bufferOffset += bufferLimit;
+            bufferPosition = 0;
+            bufferLimit = 0;
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    throw new EOFException("Input ended while skipping to offset " + offset);
+                }
+                bufferOffset += skipped;
+                remaining -= skipped;
+            }
+        }
+        lineNumber += lines;
+        this.commentMode = commentMode;
+        lineLength = 0;
+        position = 0;
+        tokenStart = 0;
+        tokenEnd = 0;
+    }
+
+    /**
+     * @return amount of bytes consumed so far, directly after a call of nextLine() this is the start of the next line
+     */
+    public long getOffset() {
+        return bufferOffset + bufferPosition;
+    }
+
+    /**
+     * @return true if the consumed input ends inside a comment
+     */
+    public boolean isInComment() {
+        return commentMode;
+    }
+
+    /**
+     * @return number of the current line, counting from the first line of the input
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the current line without comments and surrounding whitespace
+     */
+    public String line() {
+        return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+    }
+
+    public boolean lineEquals(String value) {
+        return regionEquals(0, lineLength, value, false);
+    }
+
+    public boolean lineEqualsIgnoreCase(String value) {
+        return regionEquals(0, lineLength, value, true);
+    }
+
+    public boolean lineEndsWith(char c) {
+        return lineLength > 0 && line[lineLength - 1] == c;
+    }
+
+    /**
+     * Advances to the next whitespace separated token of the current line
+     *
+     * @return false if there are no more tokens in this line
+     */
+    public boolean nextToken() {
+        while (position < lineLength && line[position] <= ' ') {
+            position++;
+        }
+        if (position == lineLength) {
+            tokenStart = tokenEnd = position;
+            return false;
+        }
+        tokenStart = position;
+        while (position < lineLength && line[position] > ' ') {
+            position++;
+        }
+        tokenEnd = position;
+        return true;
+    }
+
+    /**
+     * @return all remaining tokens of the current line
+     */
+    public String[] remainingTokens() {
+        List<String> tokens = new ArrayList<>();
+        while (nextToken()) {
+            tokens.add(token());
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    public String token() {
+        return new String(line, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8);
+    }
+
+    public boolean tokenEquals(String value) {
+        return regionEquals(tokenStart, tokenEnd, value, false);
+    }
+
+    public boolean tokenEqualsIgnoreCase(String value) {
+        return regionEquals(tokenStart, tokenEnd, value, true);
+    }
+
+    /**
+     * Removes all trailing semicolons from the current token
+     */
+    public void stripTokenSemicolons() {
+        while (tokenEnd > tokenStart && line[tokenEnd - 1] == ';') {
+            tokenEnd--;
+        }
+    }
+
+    /**
+     * Parses the current token as double. Plain decimal numbers are parsed directly from the line buffer, they give
+     * exactly the same result as Double.parseDouble. Everything else (NaN, Infinity, very long or large numbers...)
+     * falls back to Double.parseDouble.
+     *
+     * @return the parsed number
+     * @throws NumberFormatException if the token isn't a number
+     */
+    public double tokenAsDouble() {
+        int i = tokenStart;
+        boolean negative = false;
+        if (i < tokenEnd && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        for (; i < tokenEnd && line[i] >= '0' && line[i] <= '9'; i++) {
+            anyDigit = true;
+            if (mantissa != 0 || line[i] != '0') {
+                mantissa = mantissa * 10 + (line[i] - '0');
+                significantDigits++;
+            }
+        }
+        if (i < tokenEnd && line[i] == '.') {
+            for (i++; i < tokenEnd && line[i] >= '0' && line[i] <= '9'; i++) {
+                anyDigit = true;
+                if (mantissa != 0 || line[i] != '0') {
+                    mantissa = mantissa * 10 + (line[i] - '0');
+                    significantDigits++;
+                }
+                exponent--;
+            }
+        }
+        if (anyDigit && i < tokenEnd && (line[i] == 'e' || line[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < tokenEnd && (line[i] == '-' || line[i] == '+')) {
+                negativeExponent = line[i] == '-';
+                i++;
+            }
+            int explicitExponent = 0;
+            boolean anyExponentDigit = false;
+            for (; i < tokenEnd && line[i] >= '0' && line[i] <= '9' && explicitExponent < 10000; i++) {
+                anyExponentDigit = true;
+                explicitExponent = explicitExponent * 10 + (line[i] - '0');
+            }
+            if (!anyExponentDigit) {
+                anyDigit = false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (anyDigit && i == tokenEnd && significantDigits <= 18 && mantissa <= MAX_EXACT_MANTISSA
+                && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(token());
+    }
+
+    private boolean regionEquals(int start, int end, String value, boolean ignoreCase) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = (char) (line[start + i] & 0xFF);
+            char v = value.charAt(i);
+            if (c != v && !(ignoreCase && Character.toUpperCase(c) == Character.toUpperCase(v))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -4,60 +4,284 @@ import objects.Gene;
 import objects.GeneDistances;
 import objects.GeneTuple;
 
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 public class NexusWriter {
-    public static void writeHgtsToFile(String filename, HashMap<String, GeneDistances> map, List<GeneTuple> hgts) {
-        Logger log = Logger.getGlobal();
-        log.warning("Writing to file " + filename + "...");
-        try {
-            FileWriter file = new FileWriter(filename, false);
-            file.append("#NEXUS\nBEGIN HGTRELATIONS;\n[matrices each describing the type of horizontal gene transfer between genes]\n");
-            file.append("\t[LESSER=-1, EQUALORDEFAULT=0, GREATER=1]\n");
-
-            for (String genetree : map.keySet()) {
-                file.append("\thgtrelation\n\t\tname=" + genetree + " triangle=both\n");
-                List<Gene> genes = map.get(genetree).getGenes();
-                //genes.sort(Comparator.comparing(Gene::getSpeciesAndGeneIdentifier)); //looks better, but without this the order is the same as in the input nexus file
-                for (Gene gene : genes) {
-                    file.append("\t\t\t" + gene.getSpeciesAndGeneIdentifier() + " ");
-                    for (Gene comparedGene : genes) {
-                        if (gene.equals(comparedGene)) {
-                            file.append(" 0 ");
-                            gene.getRelationsToOtherGenesInItsTree().add(new GeneTuple(gene, gene, GeneTuple.RelationType.EQUAL));
-                            continue;
-                        }
-                        GeneTuple foundHGT = hgts.stream().filter(tuple -> tuple.containsGenes(gene, comparedGene)).findFirst().orElse(null);
-                        if (foundHGT == null) {
-                            file.append(" 0 ");
-                            gene.getRelationsToOtherGenesInItsTree().add(new GeneTuple(gene, comparedGene, GeneTuple.RelationType.EQUAL));
-                        } else {
-                            if (foundHGT.type == GeneTuple.RelationType.HIGHER) {
-                                file.append(" 1 ");
-                                gene.getRelationsToOtherGenesInItsTree().add(new GeneTuple(gene, comparedGene, GeneTuple.RelationType.HIGHER));
-                            } else if (foundHGT.type == GeneTuple.RelationType.LESSER) {
-                                file.append("-1 ");
-                                gene.getRelationsToOtherGenesInItsTree().add(new GeneTuple(gene, comparedGene, GeneTuple.RelationType.LESSER));
-                            } else {
-                                file.append(" 0 ");
-                                gene.getRelationsToOtherGenesInItsTree().add(new GeneTuple(gene, comparedGene, GeneTuple.RelationType.EQUAL));
-                            }
-                        }
-                    }
-                    file.append("\n");
-                }
-                file.append("\t\t\t;\n");
+
+    /**
+     * Amount of rendered trees per thread that may wait to be written, bounds the memory used for the buffers
+     */
+    private static final int PENDING_TREES_PER_THREAD = 2;
+
+    static final String HGT_HEADER = "#NEXUS\nBEGIN HGTRELATIONS;\n[matrices each describing the type of horizontal gene transfer between genes]\n"
+            + "\t[LESSER=-1, EQUALORDEFAULT=0, GREATER=1]\n";
+    static final String SPARSE_HGT_HEADER = "#NEXUS\nBEGIN SPARSEHGTRELATIONS;\n[genes of every gene tree followed by the pairs of genes with horizontal gene transfer]\n"
+            + "\t[LESSER=-1, GREATER=1]\n";
+
+    public static void writeHgtsToFile(String filename, Map<String, GeneDistances> map, List<GeneTuple> hgts) {
+        writeHgtsToFile(filename, map, hgts, 1);
+    }
+
+    /**
+     * Writes the HGTRELATIONS block with one dense matrix per gene tree. The matrices of the trees are rendered in
+     * parallel and written in the order of the map. If the filename ends with .gz the output is gzip compressed.
+     *
+     * @param filename output file
+     * @param map      gene trees
+     * @param hgts     found HGTs, if a pair is contained more than once the first one is used
+     * @param threads  amount of threads rendering the matrices
+     */
+    public static void writeHgtsToFile(String filename, Map<String, GeneDistances> map, List<GeneTuple> hgts, int threads) {
+        ExecutorService renderers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try (HgtSink sink = new DenseSink(filename, renderers, threads)) {
+            writeTrees(sink, map, hgts);
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Couldn't write to file " + filename);
+            e.printStackTrace();
+        } finally {
+            if (renderers != null) {
+                renderers.shutdown();
             }
-            file.append("END;");
-            file.close();
+        }
+    }
+
+    /**
+     * Writes only the HGTs instead of dense matrices: for every gene tree its genes in input order and then one line
+     * per pair of genes with an HGT. The relations aren't added to the genes. If the filename ends with .gz the output
+     * is gzip compressed while it is written. SparseHgtReader expands such a file back into the dense matrices.
+     *
+     * @param filename output file
+     * @param map      gene trees
+     * @param hgts     found HGTs, if a pair is contained more than once the first one is used
+     */
+    public static void writeSparseHgtsToFile(String filename, Map<String, GeneDistances> map, List<GeneTuple> hgts) {
+        try (HgtSink sink = new SparseSink(filename)) {
+            writeTrees(sink, map, hgts);
         } catch (IOException e) {
-            log.severe("Couldn't write to file " + filename);
+            Logger.getGlobal().severe("Couldn't write to file " + filename);
             e.printStackTrace();
         }
-        log.warning("Export completed!");
+    }
+
+    /**
+     * Hands the HGTs of every gene tree of the map to the sink, in the order of the map
+     */
+    private static void writeTrees(HgtSink sink, Map<String, GeneDistances> map, List<GeneTuple> hgts) throws IOException {
+        Map<String, List<GeneTuple>> hgtsByTree = new HashMap<>();
+        for (GeneTuple tuple : hgts) {
+            hgtsByTree.computeIfAbsent(tuple.first.getGeneTree(), tree -> new ArrayList<>()).add(tuple);
+        }
+        for (String genetree : map.keySet()) {
+            sink.acceptTree(map.get(genetree), hgtsByTree.getOrDefault(genetree, Collections.emptyList()));
+        }
+    }
+
+    /**
+     * Writes the HGTRELATIONS block while the HGTs are confirmed. With an executor the matrices are rendered in
+     * parallel, at most PENDING_TREES_PER_THREAD rendered trees per thread wait to be written. The executor can be
+     * shared by the sinks of several percentages and isn't shut down by the sink.
+     */
+    static class DenseSink implements HgtSink {
+
+        private final String filename;
+        private final OutputStream out;
+        private final ExecutorService executor;
+        private final int threads;
+        private final Queue<Future<byte[]>> pending;
+
+        /**
+         * @param filename  output file
+         * @param renderers executor rendering the matrices, null to render them on the calling thread
+         * @param threads   amount of threads of renderers
+         */
+        DenseSink(String filename, ExecutorService renderers, int threads) throws IOException {
+            Logger.getGlobal().warning("Writing to file " + filename + "...");
+            this.filename = filename;
+            this.out = openOutput(filename);
+            this.executor = renderers;
+            this.threads = Math.max(1, threads);
+            this.pending = new ArrayDeque<>();
+            out.write(HGT_HEADER.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void acceptTree(GeneDistances tree, List<GeneTuple> hgts) throws IOException {
+            Map<Long, GeneTuple.RelationType> index = indexHgts(hgts);
+            if (executor == null) {
+                out.write(renderTree(tree.getTreeName(), tree, index));
+                return;
+            }
+            pending.add(executor.submit(() -> renderTree(tree.getTreeName(), tree, index)));
+            if (pending.size() >= threads * PENDING_TREES_PER_THREAD) {
+                out.write(take(pending.poll()));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                while (!pending.isEmpty()) {
+                    out.write(take(pending.poll()));
+                }
+                out.write("END;".getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+                //trees of this sink that are still rendered after an error are abandoned, the executor is shared
+                Future<byte[]> abandoned;
+                while ((abandoned = pending.poll()) != null) {
+                    abandoned.cancel(true);
+                }
+            }
+            Logger.getGlobal().warning("Export to " + filename + " completed!");
+        }
+
+        private static byte[] take(Future<byte[]> rendered) throws IOException {
+            try {
+                return rendered.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Couldn't render a gene tree", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rendering the gene trees");
+            }
+        }
+    }
+
+    /**
+     * Writes the SPARSEHGTRELATIONS block while the HGTs are confirmed
+     */
+    static class SparseSink implements HgtSink {
+
+        private final String filename;
+        private final Writer file;
+
+        SparseSink(String filename) throws IOException {
+            this(filename, openOutput(filename));
+            Logger.getGlobal().warning("Writing to file " + filename + "...");
+        }
+
+        /**
+         * @param name name of the output used in the log
+         * @param out  output, is closed together with the sink
+         */
+        SparseSink(String name, OutputStream out) throws IOException {
+            this.filename = name;
+            this.file = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+            file.write(SPARSE_HGT_HEADER);
+        }
+
+        @Override
+        public void acceptTree(GeneDistances tree, List<GeneTuple> hgts) throws IOException {
+            List<Gene> genes = tree.getGenes();
+            file.write("\thgtrelation\n\t\tname=" + tree.getTreeName() + " genes=" + genes.size() + "\n");
+            for (Gene gene : genes) {
+                file.write("\t\t\t" + gene.getSpeciesAndGeneIdentifier() + "\n");
+            }
+            file.write("\t\t\t;\n");
+            Map<Long, GeneTuple.RelationType> treeHgts = indexHgts(hgts);
+            List<Long> pairs = new ArrayList<>(treeHgts.keySet());
+            Collections.sort(pairs);
+            for (long pair : pairs) {
+                GeneTuple.RelationType type = treeHgts.get(pair);
+                if (type == GeneTuple.RelationType.EQUAL) {
+                    continue;
+                }
+                file.write("\t\t\t" + genes.get((int) (pair >>> 32)).getSpeciesAndGeneIdentifier() + " "
+                        + genes.get((int) pair).getSpeciesAndGeneIdentifier()
+                        + (type == GeneTuple.RelationType.LESSER ? " -1\n" : " 1\n"));
+            }
+            file.write("\t\t\t;\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                file.write("END;\n");
+            } finally {
+                file.close();
+            }
+            Logger.getGlobal().warning("Export to " + filename + " completed!");
+        }
+    }
+
+    /**
+     * @return pairs of indices in the tree mapped to the type of the first HGT of the pair
+     */
+    private static Map<Long, GeneTuple.RelationType> indexHgts(List<GeneTuple> hgts) {
+        Map<Long, GeneTuple.RelationType> index = new HashMap<>();
+        for (GeneTuple tuple : hgts) {
+            index.putIfAbsent(pairKey(tuple.first.getIndexInTree(), tuple.second.getIndexInTree()), tuple.type);
+        }
+        return index;
+    }
+
+    /**
+     * Renders the matrix of one gene tree, the genes aren't changed so several runs can share them
+     */
+    private static byte[] renderTree(String genetree, GeneDistances distances, Map<Long, GeneTuple.RelationType> hgts) {
+        List<Gene> genes = distances.getGenes();
+        StringBuilder sb = new StringBuilder(genes.size() * (genes.size() * 3 + 24) + 64);
+        sb.append("\thgtrelation\n\t\tname=").append(genetree).append(" triangle=both\n");
+        //genes.sort(Comparator.comparing(Gene::getSpeciesAndGeneIdentifier)); //looks better, but without this the order is the same as in the input nexus file
+        for (int i = 0; i < genes.size(); i++) {
+            Gene gene = genes.get(i);
+            sb.append("\t\t\t").append(gene.getSpeciesAndGeneIdentifier()).append(' ');
+            for (int j = 0; j < genes.size(); j++) {
+                GeneTuple.RelationType type = i == j ? null : hgts.get(pairKey(i, j));
+                if (type == null) {
+                    type = GeneTuple.RelationType.EQUAL;
+                }
+                appendCell(sb, type);
+            }
+            sb.append('\n');
+        }
+        sb.append("\t\t\t;\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return stream to the file, gzip compressing if the filename ends with .gz
+     */
+    static OutputStream openOutput(String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        if (filename.toLowerCase(Locale.ROOT).endsWith(".gz")) {
+            return new GZIPOutputStream(out, 1 << 16);
+        }
+        return out;
+    }
+
+    static void appendCell(StringBuilder sb, GeneTuple.RelationType type) {
+        if (type == GeneTuple.RelationType.HIGHER) {
+            sb.append(" 1 ");
+        } else if (type == GeneTuple.RelationType.LESSER) {
+            sb.append("-1 ");
+        } else {
+            sb.append(" 0 ");
+        }
+    }
+
+    private static long pairKey(int i, int j) {
+        return ((long) Math.min(i, j) << 32) | Math.max(i, j);
     }
 }
@@ -0,0 +1,257 @@
+package core;
+
+import objects.Gene;
+import objects.Species;
+import objects.SpeciesResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Results of an earlier run, matched against the input of the current run. Best match distances of genes in
+ * unchanged gene trees can be reused, candidates additionally need the same border, and a species whose gene trees
+ * are all unchanged doesn't need to be evaluated again at all if the percentage and the species are the same.
+ * <p>
+ * The stored results are indexed by the candidate species of the earlier run. If species were added or removed since
+ * then, they are matched by name and moved to the candidate indices of the current run when loading, so only the
+ * added candidate species and the genes whose candidates they change have to be evaluated again.
+ */
+public class PreviousRun {
+
+    private final Map<String, SpeciesResult> results;
+    private final Map<String, BitSet> addedCandidates;
+    private final Set<String> unchangedTrees;
+    private final boolean samePercentage;
+    private final boolean sameSpecies;
+    private final boolean sameInput;
+    private final long validLength;
+
+    private PreviousRun(Map<String, SpeciesResult> results, Map<String, BitSet> addedCandidates, Set<String> unchangedTrees,
+                        boolean samePercentage, boolean sameSpecies, boolean sameInput, long validLength) {
+        this.results = results;
+        this.addedCandidates = addedCandidates;
+        this.unchangedTrees = unchangedTrees;
+        this.samePercentage = samePercentage;
+        this.sameSpecies = sameSpecies;
+        this.sameInput = sameInput;
+        this.validLength = validLength;
+    }
+
+    /**
+     * Loads the results of an earlier run
+     *
+     * @param filename result file written by the earlier run
+     * @param current  description of the current run
+     * @return the usable results, null if there are none
+     */
+    public static PreviousRun load(String filename, SpeciesResultFile.Header current) {
+        Logger log = Logger.getGlobal();
+        if (!Files.isRegularFile(Paths.get(filename))) {
+            return null;
+        }
+        SpeciesResultFile.Contents contents;
+        try {
+            contents = SpeciesResultFile.read(filename);
+        } catch (IOException e) {
+            log.warning("Ignoring " + filename + ", it couldn't be read: " + e.getMessage());
+            return null;
+        }
+        SpeciesResultFile.Header previous = contents.getHeader();
+        if (previous.getRunMode() != current.getRunMode()) {
+            log.warning("Ignoring " + filename + ", it was written for another run mode.");
+            return null;
+        }
+
+        Set<String> unchangedTrees = new HashSet<>();
+        for (Map.Entry<String, String> tree : current.getTreeDigests().entrySet()) {
+            if (tree.getValue().equals(previous.getTreeDigests().get(tree.getKey()))) {
+                unchangedTrees.add(tree.getKey());
+            }
+        }
+        //the best match distances, borders and candidates are indexed by the other species of the earlier run
+        boolean sameSpecies = previous.getSpecies().equals(current.getSpecies());
+        Set<String> currentSpecies = new HashSet<>(current.getSpecies());
+        Map<String, SpeciesResult> results = new HashMap<>();
+        Map<String, BitSet> addedCandidates = new HashMap<>();
+        for (SpeciesResult result : contents.getResults()) {
+            if (sameSpecies) {
+                results.put(result.getSpecies(), result);
+            } else if (currentSpecies.contains(result.getSpecies())) {
+                BitSet added = new BitSet();
+                results.put(result.getSpecies(), remap(result, previous.getSpecies(), current.getSpecies(), added));
+                addedCandidates.put(result.getSpecies(), added);
+            }
+        }
+        log.warning(String.format("Read %d species results of an earlier run, %d of %d gene trees are unchanged.",
+                results.size(), unchangedTrees.size(), current.getTreeDigests().size()));
+        if (!sameSpecies) {
+            log.warning("The species changed since " + filename + " was written, only the added species are evaluated again.");
+        }
+        boolean samePercentage = Double.compare(previous.getPercentage(), current.getPercentage()) == 0;
+        boolean sameInput = samePercentage && sameSpecies
+                && unchangedTrees.size() == previous.getTreeDigests().size() && unchangedTrees.size() == current.getTreeDigests().size();
+        return new PreviousRun(results, addedCandidates, unchangedTrees, samePercentage, sameSpecies, sameInput, contents.getValidLength());
+    }
+
+    /**
+     * Moves the result of a species from the candidate indices of the earlier run to the ones of the current run.
+     * Candidate species that weren't in the earlier run get no border, best match distance (NaN) or candidates and are
+     * marked in added. A gene loses its candidates if a removed candidate species had genes in its tree, the positions
+     * of the other species compared to the gene may have changed with it. The distribution is always rebuilt.
+     *
+     * @param previousSpecies species of the earlier run
+     * @param currentSpecies  species of the current run
+     * @param added           receives the candidate indices of the current run that weren't candidates before
+     */
+    private static SpeciesResult remap(SpeciesResult result, List<String> previousSpecies, List<String> currentSpecies, BitSet added) {
+        Map<String, Integer> previousIndices = new HashMap<>();
+        for (String species : previousSpecies) {
+            if (!species.equals(result.getSpecies())) {
+                previousIndices.put(species, previousIndices.size());
+            }
+        }
+        //index of every current candidate species in the earlier run, -1 if it is new
+        int[] fromPrevious = new int[currentSpecies.size() - 1];
+        BitSet kept = new BitSet(previousIndices.size());
+        int c = 0;
+        for (String species : currentSpecies) {
+            if (species.equals(result.getSpecies())) {
+                continue;
+            }
+            Integer index = previousIndices.get(species);
+            fromPrevious[c] = index == null ? -1 : index;
+            if (index == null) {
+                added.set(c);
+            } else {
+                kept.set(index);
+            }
+            c++;
+        }
+        boolean removed = kept.cardinality() < previousIndices.size();
+
+        int[] bordersLesser = new int[fromPrevious.length];
+        int[] bordersHigher = new int[fromPrevious.length];
+        for (c = 0; c < fromPrevious.length; c++) {
+            bordersLesser[c] = fromPrevious[c] < 0 ? Integer.MIN_VALUE : result.getBordersLesser()[fromPrevious[c]];
+            bordersHigher[c] = fromPrevious[c] < 0 ? Integer.MAX_VALUE : result.getBordersHigher()[fromPrevious[c]];
+        }
+        List<SpeciesResult.GeneResult> genes = new ArrayList<>(result.getGenes().size());
+        for (SpeciesResult.GeneResult gene : result.getGenes()) {
+            double[] previousDistances = gene.getBestMatchDistances();
+            double[] bestMatchDistances = null;
+            if (previousDistances != null) {
+                bestMatchDistances = new double[fromPrevious.length];
+                for (c = 0; c < fromPrevious.length; c++) {
+                    bestMatchDistances[c] = fromPrevious[c] < 0 ? Double.NaN : previousDistances[fromPrevious[c]];
+                }
+            }
+            //without the best match distances it is unknown whether a removed species had genes in the tree
+            boolean sameCandidates = !removed || previousDistances != null;
+            for (int p = kept.nextClearBit(0); sameCandidates && p < previousIndices.size(); p = kept.nextClearBit(p + 1)) {
+                sameCandidates = previousDistances[p] == Double.MAX_VALUE;
+            }
+            genes.add(new SpeciesResult.GeneResult(gene.getGeneTree(), gene.getIndexInTree(), bestMatchDistances,
+                    sameCandidates ? remap(gene.getCandidatesLesser(), fromPrevious) : null,
+                    sameCandidates ? remap(gene.getCandidatesHigher(), fromPrevious) : null));
+        }
+        return new SpeciesResult(result.getSpecies(), bordersLesser, bordersHigher, genes);
+    }
+
+    /**
+     * @return the candidates of every current candidate species, null for the ones that weren't candidates before
+     */
+    private static int[][] remap(int[][] candidates, int[] fromPrevious) {
+        int[][] remapped = new int[fromPrevious.length][];
+        for (int c = 0; c < fromPrevious.length; c++) {
+            remapped[c] = fromPrevious[c] < 0 ? null : candidates[fromPrevious[c]];
+        }
+        return remapped;
+    }
+
+    /**
+     * Loads the results of several shards of the current run
+     *
+     * @param filenames result files written by the shards
+     * @param current   description of the current run
+     * @return the results of all shards that were written for exactly this input and these parameters
+     */
+    public static PreviousRun loadShards(List<String> filenames, SpeciesResultFile.Header current) {
+        Logger log = Logger.getGlobal();
+        Map<String, SpeciesResult> results = new HashMap<>();
+        for (String filename : filenames) {
+            PreviousRun shard = load(filename, current);
+            if (shard == null || !shard.isSameInput()) {
+                log.warning("Ignoring shard " + filename + ", it wasn't written for this input and these parameters.");
+                continue;
+            }
+            results.putAll(shard.results);
+        }
+        return new PreviousRun(results, new HashMap<>(), new HashSet<>(current.getTreeDigests().keySet()), true, true, true, 0);
+    }
+
+    /**
+     * @return result of the species in the earlier run, null if there is none
+     */
+    public SpeciesResult getResult(Species s) {
+        return results.get(s.getName());
+    }
+
+    /**
+     * @return indices of the candidate species of s that weren't candidates in the earlier run, their best match
+     * distances and candidates are missing in the result of s
+     */
+    public BitSet getAddedCandidates(Species s) {
+        BitSet added = addedCandidates.get(s.getName());
+        return added == null ? new BitSet() : added;
+    }
+
+    /**
+     * @return names of the species with a result
+     */
+    public Set<String> getSpecies() {
+        return results.keySet();
+    }
+
+    /**
+     * @return true if the earlier run had exactly the same input and parameters, so its file can be continued
+     */
+    public boolean isSameInput() {
+        return sameInput;
+    }
+
+    /**
+     * @return length of the valid part of the file, see SpeciesResultFile.Writer.append()
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    public boolean isUnchanged(String geneTree) {
+        return unchangedTrees.contains(geneTree);
+    }
+
+    /**
+     * @return true if nothing the result of the species depends on changed, so it can be used as it is
+     */
+    public boolean isComplete(Species s) {
+        SpeciesResult result = getResult(s);
+        if (!samePercentage || !sameSpecies || result == null || result.getGenes().size() != s.getGenes().size()) {
+            return false;
+        }
+        for (Gene gene : s.getGenes()) {
+            if (!isUnchanged(gene.getGeneTree()) || result.getGene(gene.getGeneTree(), gene.getIndexInTree()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
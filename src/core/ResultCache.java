@@ -0,0 +1,195 @@
+package core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Directory of finished outputs, addressed by a digest of the input and the parameters they were computed with, so a
+ * repeated run only copies its output. Next to the outputs the species results of every dataset and run mode are kept
+ * (see SpeciesResultFile), a run with a new percentage reuses their best match distances and distributions and only
+ * computes the borders and candidates again. The least recently used entries are removed when the directory grows
+ * beyond its size limit.
+ */
+public class ResultCache {
+
+    private static final String VERSION = "hgt-results-2"; //changes whenever an output format or SpeciesResultFile changes
+    private static final String OUTPUT_SUFFIX = ".out";
+    private static final String STATE_SUFFIX = ".hgtres";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * Constructor. Creates the directory if it doesn't exist.
+     *
+     * @param directory directory of the cache
+     * @param maxBytes  size limit of all entries together
+     * @throws IOException if the directory can't be created
+     */
+    public ResultCache(String directory, long maxBytes) throws IOException {
+        this.directory = Paths.get(directory);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+    }
+
+    /**
+     * @param header describes the input and run mode, its percentage is ignored
+     * @return key of the species results of a dataset and run mode
+     */
+    public static String datasetKey(SpeciesResultFile.Header header) {
+        StringBuilder key = new StringBuilder(VERSION).append('\n').append(header.getRunMode());
+        for (String species : header.getSpecies()) {
+            key.append("\ns ").append(species);
+        }
+        //in the order of the input, which is also the order the trees are written in
+        for (Map.Entry<String, String> tree : header.getTreeDigests().entrySet()) {
+            key.append("\nt ").append(tree.getKey()).append(' ').append(tree.getValue());
+        }
+        return digest(key.toString());
+    }
+
+    /**
+     * @param header     describes the input and run mode, its percentage is ignored
+     * @param percentage percentage of the output
+     * @param format     output format, see HgtSink.open()
+     * @param filename   output file, only its compression matters
+     * @return key of one output
+     */
+    public static String outputKey(SpeciesResultFile.Header header, double percentage, String format, String filename) {
+        boolean gzip = filename.toLowerCase(Locale.ROOT).endsWith(".gz");
+        return digest(datasetKey(header) + '\n' + Double.toString(percentage) + '\n' + format + '\n' + gzip);
+    }
+
+    /**
+     * @return file of the species results of a dataset and run mode, to be used like the one of -incremental
+     */
+    public String getStateFilename(SpeciesResultFile.Header header) {
+        return directory.resolve(datasetKey(header) + STATE_SUFFIX).toString();
+    }
+
+    /**
+     * Copies a cached output to the given file
+     *
+     * @param key      key of the output, see outputKey()
+     * @param filename file to write the output to
+     * @return true if the output was cached, false if it has to be computed
+     */
+    public boolean fetch(String key, String filename) {
+        Path entry = directory.resolve(key + OUTPUT_SUFFIX);
+        try {
+            Files.copy(entry, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return false; //not cached or just removed by another run
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Couldn't copy " + filename + " from the result cache: " + e.getMessage());
+            return false;
+        }
+        Logger.getGlobal().warning("Wrote " + filename + " from the result cache.");
+        return true;
+    }
+
+    /**
+     * Adds a finished output to the cache and removes the least recently used entries if the cache is too large
+     *
+     * @param key      key of the output, see outputKey()
+     * @param filename file the output was written to
+     * @throws IOException if the output can't be copied into the cache
+     */
+    public void store(String key, String filename) throws IOException {
+        Path entry = directory.resolve(key + OUTPUT_SUFFIX);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.copy(Paths.get(filename), tmp, StandardCopyOption.REPLACE_EXISTING);
+            //other runs on the same cache only ever see complete entries
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * Removes the least recently used entries until all of them together fit into the size limit. Files being written
+     * by a run aren't entries yet and are left alone.
+     *
+     * @throws IOException if the directory can't be listed
+     */
+    public void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(OUTPUT_SUFFIX) || name.endsWith(STATE_SUFFIX)) {
+                    try {
+                        size += Files.size(file);
+                        entries.add(file);
+                    } catch (NoSuchFileException e) {
+                        //removed by another run in the meantime
+                    }
+                }
+            }
+        }
+        if (size <= maxBytes) {
+            return;
+        }
+        Map<Path, FileTime> lastUsed = new HashMap<>();
+        for (Path entry : entries) {
+            try {
+                lastUsed.put(entry, Files.getLastModifiedTime(entry));
+            } catch (NoSuchFileException e) {
+                lastUsed.put(entry, FileTime.fromMillis(0));
+            }
+        }
+        entries.sort(Comparator.comparing(lastUsed::get));
+        for (Path entry : entries) {
+            if (size <= maxBytes) {
+                break;
+            }
+            try {
+                long entrySize = Files.size(entry);
+                Files.delete(entry);
+                size -= entrySize;
+                Logger.getGlobal().info("Removed " + entry.getFileName() + " from the result cache.");
+            } catch (NoSuchFileException e) {
+                //removed by another run in the meantime
+            }
+        }
+    }
+
+    private static String digest(String text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 isn't available", e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
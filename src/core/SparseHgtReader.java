@@ -0,0 +1,216 @@
+package core;
+
+import objects.GeneTuple;
+import objects.NexusFormatException;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the SPARSEHGTRELATIONS block written by NexusWriter.writeSparseHgtsToFile, decompressed while reading if the
+ * filename ends with .gz or .zst, and expands it back into the dense relation matrices.
+ */
+public class SparseHgtReader {
+
+    private final Map<String, List<String>> genesByTree;
+    private final Map<String, Map<Long, GeneTuple.RelationType>> hgtsByTree;
+
+    public SparseHgtReader(String filename) throws IOException, NexusFormatException {
+        this.genesByTree = new LinkedHashMap<>();
+        this.hgtsByTree = new HashMap<>();
+        try (InputStream in = DecompressingInputStream.open(filename);
+             NexusTokenizer tokenizer = new NexusTokenizer(in)) {
+            read(tokenizer);
+        }
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tT.%1$tL] %5$s %n");
+        Logger log = Logger.getGlobal();
+        log.setLevel(Level.WARNING);
+
+        String filename = null;
+        String outputfilename = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-i") && i + 1 < args.length) {
+                filename = args[++i];
+            } else if (args[i].equalsIgnoreCase("-o") && i + 1 < args.length) {
+                outputfilename = args[++i];
+            } else {
+                log.warning("Didn't recognize parameter \"" + args[i] + "\", skipping...");
+            }
+        }
+        if (filename == null || outputfilename == null) {
+            log.severe("Expands a sparse HGT file into dense matrices. Usage: -i sparse.nex[.gz|.zst] -o dense.nex");
+            System.exit(1);
+        }
+
+        try {
+            new SparseHgtReader(filename).writeDense(outputfilename);
+        } catch (FileNotFoundException e) {
+            log.severe("Couldn't find file " + filename + ", application is exiting!");
+            System.exit(1);
+        } catch (IOException | NexusFormatException e) {
+            log.severe("Couldn't expand " + filename + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void read(NexusTokenizer tokenizer) throws IOException, NexusFormatException {
+        if (!tokenizer.nextLine() || !tokenizer.lineEqualsIgnoreCase("#NEXUS")) {
+            throw new NexusFormatException("Not a Nexus file: missing #NEXUS. Line: " + tokenizer.getLineNumber());
+        }
+        if (!tokenizer.nextLine() || !tokenizer.lineEqualsIgnoreCase("BEGIN SPARSEHGTRELATIONS;")) {
+            throw new NexusFormatException("Expected BEGIN SPARSEHGTRELATIONS;. Line: " + tokenizer.getLineNumber());
+        }
+        while (tokenizer.nextLine()) {
+            if (tokenizer.lineEqualsIgnoreCase("END;")) {
+                return;
+            }
+            if (!tokenizer.lineEqualsIgnoreCase("hgtrelation")) {
+                throw new NexusFormatException("Expected hgtrelation. Line: " + tokenizer.getLineNumber());
+            }
+            readTree(tokenizer);
+        }
+        throw new NexusFormatException("Block SPARSEHGTRELATIONS isn't closed. Line: " + tokenizer.getLineNumber());
+    }
+
+    private void readTree(NexusTokenizer tokenizer) throws IOException, NexusFormatException {
+        String name = null;
+        int geneCount = -1;
+        if (!tokenizer.nextLine()) {
+            throw new NexusFormatException("Missing name of hgtrelation. Line: " + tokenizer.getLineNumber());
+        }
+        for (String command : tokenizer.remainingTokens()) {
+            String[] data = command.split("=");
+            if (data.length != 2) {
+                throw new NexusFormatException("No data given to sub-command. Line: " + tokenizer.getLineNumber());
+            }
+            if (data[0].equalsIgnoreCase("name")) {
+                name = data[1];
+            } else if (data[0].equalsIgnoreCase("genes")) {
+                geneCount = Integer.parseInt(data[1]);
+            }
+            //ignore unknown sub-commands
+        }
+        if (name == null || geneCount < 0) {
+            throw new NexusFormatException("hgtrelation needs name and genes. Line: " + tokenizer.getLineNumber());
+        }
+
+        List<String> genes = new ArrayList<>(geneCount);
+        Map<String, Integer> indexOfGene = new HashMap<>();
+        while (tokenizer.nextLine() && !tokenizer.lineEquals(";")) {
+            indexOfGene.put(tokenizer.line(), genes.size());
+            genes.add(tokenizer.line());
+        }
+        if (genes.size() != geneCount) {
+            throw new NexusFormatException(String.format("Gene tree %s lists %d genes, expected %d. Line: %d",
+                    name, genes.size(), geneCount, tokenizer.getLineNumber()));
+        }
+
+        Map<Long, GeneTuple.RelationType> hgts = new HashMap<>();
+        while (tokenizer.nextLine() && !tokenizer.lineEquals(";")) {
+            String[] record = tokenizer.remainingTokens();
+            Integer first = record.length == 3 ? indexOfGene.get(record[0]) : null;
+            Integer second = record.length == 3 ? indexOfGene.get(record[1]) : null;
+            if (first == null || second == null) {
+                throw new NexusFormatException("Malformed relation in gene tree " + name + ". Line: " + tokenizer.getLineNumber());
+            }
+            GeneTuple.RelationType type;
+            if (record[2].equals("-1")) {
+                type = GeneTuple.RelationType.LESSER;
+            } else if (record[2].equals("1")) {
+                type = GeneTuple.RelationType.HIGHER;
+            } else {
+                throw new NexusFormatException("Unknown relation " + record[2] + ". Line: " + tokenizer.getLineNumber());
+            }
+            hgts.put(pairKey(first, second), type);
+        }
+        genesByTree.put(name, genes);
+        hgtsByTree.put(name, hgts);
+    }
+
+    /**
+     * @return names of the gene trees in file order
+     */
+    public Set<String> getGeneTrees() {
+        return genesByTree.keySet();
+    }
+
+    /**
+     * @return species/gene identifiers of a gene tree, in the order of the rows of its matrix
+     */
+    public List<String> getGenes(String geneTree) {
+        return genesByTree.get(geneTree);
+    }
+
+    /**
+     * @return relation of gene i and gene j of a gene tree, EQUAL if there is no HGT
+     */
+    public GeneTuple.RelationType getRelation(String geneTree, int i, int j) {
+        Map<Long, GeneTuple.RelationType> hgts = hgtsByTree.get(geneTree);
+        GeneTuple.RelationType type = hgts == null ? null : hgts.get(pairKey(i, j));
+        return type == null ? GeneTuple.RelationType.EQUAL : type;
+    }
+
+    /**
+     * @return dense matrix of a gene tree, LESSER=-1, EQUAL=0, HIGHER=1
+     */
+    public int[][] getDenseMatrix(String geneTree) {
+        int size = genesByTree.get(geneTree).size();
+        int[][] matrix = new int[size][size];
+        for (Map.Entry<Long, GeneTuple.RelationType> hgt : hgtsByTree.get(geneTree).entrySet()) {
+            int i = (int) (hgt.getKey() >>> 32);
+            int j = (int) (long) hgt.getKey();
+            matrix[i][j] = matrix[j][i] = hgt.getValue() == GeneTuple.RelationType.LESSER ? -1 : 1;
+        }
+        return matrix;
+    }
+
+    /**
+     * Writes the dense HGTRELATIONS block, in the same format as NexusWriter.writeHgtsToFile
+     *
+     * @param filename output file
+     * @throws IOException error writing the file
+     */
+    public void writeDense(String filename) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16)) {
+            out.write(NexusWriter.HGT_HEADER.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (String genetree : genesByTree.keySet()) {
+                List<String> genes = genesByTree.get(genetree);
+                sb.setLength(0);
+                sb.append("\thgtrelation\n\t\tname=").append(genetree).append(" triangle=both\n");
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < genes.size(); i++) {
+                    sb.setLength(0);
+                    sb.append("\t\t\t").append(genes.get(i)).append(' ');
+                    for (int j = 0; j < genes.size(); j++) {
+                        NexusWriter.appendCell(sb, i == j ? GeneTuple.RelationType.EQUAL : getRelation(genetree, i, j));
+                    }
+                    sb.append('\n');
+                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                out.write("\t\t\t;\n".getBytes(StandardCharsets.UTF_8));
+            }
+            out.write("END;".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static long pairKey(int i, int j) {
+        return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+    }
+}
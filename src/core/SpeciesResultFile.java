@@ -0,0 +1,468 @@
+package core;
+
+import objects.Gene;
+import objects.GeneDistances;
+import objects.GeneTuple;
+import objects.Species;
+import objects.SpeciesResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary file of SpeciesResults. A header describes the run the results belong to: run mode, percentage, all species
+ * and a SHA-256 digest of every gene tree, so a later run can tell which results still fit its input. The header is
+ * followed by one record per species, each framed by its length and CRC32C checksum. Records are appended while the
+ * species are finished, a record that was cut off by a crash is detected and ignored when reading.
+ */
+public abstract class SpeciesResultFile {
+
+    private static final long MAGIC = 0x4847545245530002L; //"HGTRES" and format version 2
+
+    /**
+     * Describes the run the results of a file belong to
+     */
+    public static class Header {
+
+        private final GeneTuple.RelationType runMode;
+        private final double percentage;
+        private final List<String> species;
+        private final Map<String, String> treeDigests;
+
+        public Header(GeneTuple.RelationType runMode, double percentage, List<String> species, Map<String, String> treeDigests) {
+            this.runMode = runMode;
+            this.percentage = percentage;
+            this.species = species;
+            this.treeDigests = treeDigests;
+        }
+
+        /**
+         * Describes a run on the given input
+         *
+         * @param distanceMap gene trees of the input
+         * @param allSpecies  all species, in the order runAlgorithm gets them
+         * @param runMode     only search for this relation, both if null
+         * @param percentage  percentage to look for in the species distributions
+         */
+        public static Header of(Map<String, GeneDistances> distanceMap, List<Species> allSpecies, GeneTuple.RelationType runMode, double percentage) {
+            List<String> species = new ArrayList<>();
+            allSpecies.forEach(s -> species.add(s.getName()));
+            Map<String, String> treeDigests = new LinkedHashMap<>();
+            for (String tree : distanceMap.keySet()) {
+                treeDigests.put(tree, digest(distanceMap.get(tree)));
+            }
+            return new Header(runMode, percentage, species, treeDigests);
+        }
+
+        /**
+         * @return header of the same input and run mode with another percentage
+         */
+        public Header withPercentage(double percentage) {
+            return new Header(runMode, percentage, species, treeDigests);
+        }
+
+        public GeneTuple.RelationType getRunMode() {
+            return runMode;
+        }
+
+        public double getPercentage() {
+            return percentage;
+        }
+
+        public List<String> getSpecies() {
+            return species;
+        }
+
+        public Map<String, String> getTreeDigests() {
+            return treeDigests;
+        }
+    }
+
+    /**
+     * Header and all complete records of a file
+     */
+    public static class Contents {
+
+        private final Header header;
+        private final List<SpeciesResult> results;
+        private final long validLength;
+
+        Contents(Header header, List<SpeciesResult> results, long validLength) {
+            this.header = header;
+            this.results = results;
+            this.validLength = validLength;
+        }
+
+        public Header getHeader() {
+            return header;
+        }
+
+        public List<SpeciesResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @return length of the header and all complete records, anything after it was cut off or is damaged
+         */
+        public long getValidLength() {
+            return validLength;
+        }
+    }
+
+    /**
+     * Appends records to a file, safe to use from multiple threads. With a sync interval the records are forced to
+     * the disk at most once per interval, so a journal survives a crash of the JVM or the machine without syncing
+     * every single record.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final Set<String> present;
+        private boolean storeBestMatchDistances;
+        private long syncInterval;
+        private long lastSync;
+
+        /**
+         * Creates the file and writes the header
+         */
+        public Writer(String filename, Header header) throws IOException {
+            this(new FileOutputStream(filename));
+            writeHeader(out, header);
+        }
+
+        /**
+         * Opens an existing file to append further records, the header isn't written again
+         *
+         * @param filename    path to the file
+         * @param validLength length of the valid part of the file, a damaged rest is cut off before appending
+         * @param present     species that already have a record in the file, they aren't appended again
+         */
+        public static Writer append(String filename, long validLength, Set<String> present) throws IOException {
+            FileOutputStream file = new FileOutputStream(filename, true);
+            file.getChannel().truncate(validLength);
+            Writer writer = new Writer(file);
+            writer.present.addAll(present);
+            return writer;
+        }
+
+        private Writer(FileOutputStream file) {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            this.present = new HashSet<>();
+            this.storeBestMatchDistances = true;
+            this.syncInterval = -1;
+            this.lastSync = System.currentTimeMillis();
+        }
+
+        /**
+         * @param store false to leave out the best match distances, they are only needed to reuse results of genes in
+         *              unchanged gene trees when the input changed
+         */
+        public synchronized void setStoreBestMatchDistances(boolean store) {
+            this.storeBestMatchDistances = store;
+        }
+
+        /**
+         * @param millis minimum time between two syncs to the disk, negative to never sync automatically
+         */
+        public synchronized void setSyncInterval(long millis) {
+            this.syncInterval = millis;
+        }
+
+        /**
+         * Appends the record of one species, the record is only in the file after the next flush() or sync
+         */
+        public void append(SpeciesResult result) throws IOException {
+            if (present.contains(result.getSpecies())) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRecord(new DataOutputStream(bytes), result, storeBestMatchDistances);
+            CRC32C crc = new CRC32C();
+            crc.update(bytes.toByteArray());
+            synchronized (this) {
+                out.writeInt(bytes.size());
+                out.writeInt((int) crc.getValue());
+                bytes.writeTo(out);
+                if (syncInterval >= 0 && System.currentTimeMillis() - lastSync >= syncInterval) {
+                    sync();
+                }
+            }
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Writes all records and forces them to the disk
+         */
+        public synchronized void sync() throws IOException {
+            out.flush();
+            file.getFD().sync();
+            lastSync = System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a file, stops at the first record that is incomplete or damaged
+     *
+     * @param filename path to the file
+     * @return header and all complete records
+     * @throws IOException if the file can't be read or isn't a result file of this version
+     */
+    public static Contents read(String filename) throws IOException {
+        long fileSize = Files.size(Paths.get(filename));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            Header header = readHeader(in);
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            writeHeader(new DataOutputStream(headerBytes), header);
+            long validLength = headerBytes.size();
+            List<SpeciesResult> results = new ArrayList<>();
+            while (true) {
+                byte[] record;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > fileSize) {
+                        Logger.getGlobal().warning("Ignoring the rest of " + filename + ", the length of a record is damaged.");
+                        break;
+                    }
+                    record = new byte[length];
+                    checksum = in.readInt();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break; //end of file or a record cut off while it was written
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    Logger.getGlobal().warning("Ignoring the rest of " + filename + ", the checksum of a record doesn't match.");
+                    break;
+                }
+                results.add(readRecord(new DataInputStream(new ByteArrayInputStream(record))));
+                validLength += 2 * Integer.BYTES + record.length;
+            }
+            return new Contents(header, results, validLength);
+        }
+    }
+
+    /**
+     * @return hex encoded SHA-256 digest of the name, gene labels and distances of a gene tree
+     */
+    public static String digest(GeneDistances distances) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 isn't available", e);
+        }
+        digest.update(distances.getTreeName().getBytes(StandardCharsets.UTF_8));
+        List<Gene> genes = distances.getGenes();
+        for (Gene gene : genes) {
+            digest.update((byte) '\n');
+            digest.update(gene.getSpeciesAndGeneIdentifier().getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer row = ByteBuffer.allocate(genes.size() * Double.BYTES);
+        for (int r = 0; r < genes.size(); r++) {
+            row.clear();
+            for (int c = 0; c < genes.size(); c++) {
+                row.putDouble(distances.getDistance(r, c));
+            }
+            row.flip();
+            digest.update(row);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void writeHeader(DataOutputStream out, Header header) throws IOException {
+        out.writeLong(MAGIC);
+        out.writeByte(header.getRunMode() == null ? -1 : header.getRunMode().ordinal());
+        out.writeDouble(header.getPercentage());
+        out.writeInt(header.getSpecies().size());
+        for (String species : header.getSpecies()) {
+            out.writeUTF(species);
+        }
+        out.writeInt(header.getTreeDigests().size());
+        for (Map.Entry<String, String> tree : header.getTreeDigests().entrySet()) {
+            out.writeUTF(tree.getKey());
+            out.writeUTF(tree.getValue());
+        }
+        out.flush();
+    }
+
+    private static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readLong() != MAGIC) {
+            throw new IOException("not a result file of this version");
+        }
+        byte runMode = in.readByte();
+        double percentage = in.readDouble();
+        int speciesCount = in.readInt();
+        List<String> species = new ArrayList<>(speciesCount);
+        for (int i = 0; i < speciesCount; i++) {
+            species.add(in.readUTF());
+        }
+        int treeCount = in.readInt();
+        Map<String, String> treeDigests = new LinkedHashMap<>();
+        for (int i = 0; i < treeCount; i++) {
+            treeDigests.put(in.readUTF(), in.readUTF());
+        }
+        return new Header(runMode < 0 ? null : GeneTuple.RelationType.values()[runMode], percentage, species, treeDigests);
+    }
+
+    private static void writeRecord(DataOutputStream out, SpeciesResult result, boolean storeBestMatchDistances) throws IOException {
+        out.writeUTF(result.getSpecies());
+        writeInts(out, result.getBordersLesser());
+        writeInts(out, result.getBordersHigher());
+        writeDistribution(out, result.getDistribution());
+        out.writeInt(result.getGenes().size());
+        for (SpeciesResult.GeneResult gene : result.getGenes()) {
+            out.writeUTF(gene.getGeneTree());
+            out.writeInt(gene.getIndexInTree());
+            double[] bestMatchDistances = storeBestMatchDistances ? gene.getBestMatchDistances() : null;
+            out.writeInt(bestMatchDistances == null ? -1 : bestMatchDistances.length);
+            if (bestMatchDistances != null) {
+                for (double distance : bestMatchDistances) {
+                    out.writeDouble(distance);
+                }
+            }
+            writeCandidates(out, gene.getCandidatesLesser());
+            writeCandidates(out, gene.getCandidatesHigher());
+        }
+        out.flush();
+    }
+
+    private static SpeciesResult readRecord(DataInputStream in) throws IOException {
+        String species = in.readUTF();
+        int[] bordersLesser = readInts(in);
+        int[] bordersHigher = readInts(in);
+        int[][] distribution = readDistribution(in);
+        int geneCount = in.readInt();
+        List<SpeciesResult.GeneResult> genes = new ArrayList<>(geneCount);
+        for (int g = 0; g < geneCount; g++) {
+            String geneTree = in.readUTF();
+            int indexInTree = in.readInt();
+            int length = in.readInt();
+            double[] bestMatchDistances = length < 0 ? null : new double[length];
+            for (int c = 0; c < length; c++) {
+                bestMatchDistances[c] = in.readDouble();
+            }
+            genes.add(new SpeciesResult.GeneResult(geneTree, indexInTree, bestMatchDistances, readCandidates(in), readCandidates(in)));
+        }
+        return new SpeciesResult(species, bordersLesser, bordersHigher, distribution, genes);
+    }
+
+    /**
+     * Writes the cumulative histograms as the positions at which they grow and their value there, they only grow at
+     * as many positions as the species has genes
+     */
+    private static void writeDistribution(DataOutputStream out, int[][] distribution) throws IOException {
+        out.writeInt(distribution == null ? -1 : distribution.length);
+        if (distribution == null) {
+            return;
+        }
+        for (int[] counts : distribution) {
+            out.writeInt(counts.length);
+            int steps = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != (i > 0 ? counts[i - 1] : 0)) {
+                    steps++;
+                }
+            }
+            out.writeInt(steps);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != (i > 0 ? counts[i - 1] : 0)) {
+                    out.writeInt(i);
+                    out.writeInt(counts[i]);
+                }
+            }
+        }
+    }
+
+    private static int[][] readDistribution(DataInputStream in) throws IOException {
+        int candidates = in.readInt();
+        if (candidates < 0) {
+            return null;
+        }
+        int[][] distribution = new int[candidates][];
+        for (int c = 0; c < candidates; c++) {
+            int[] counts = new int[in.readInt()];
+            int steps = in.readInt();
+            int position = 0;
+            int value = 0;
+            for (int step = 0; step < steps; step++) {
+                int next = in.readInt();
+                Arrays.fill(counts, position, next, value);
+                position = next;
+                value = in.readInt();
+            }
+            Arrays.fill(counts, position, counts.length, value);
+            distribution[c] = counts;
+        }
+        return distribution;
+    }
+
+    private static void writeCandidates(DataOutputStream out, int[][] candidates) throws IOException {
+        out.writeInt(candidates.length);
+        for (int[] ofSpecies : candidates) {
+            writeInts(out, ofSpecies);
+        }
+    }
+
+    private static int[][] readCandidates(DataInputStream in) throws IOException {
+        int[][] candidates = new int[in.readInt()][];
+        for (int c = 0; c < candidates.length; c++) {
+            candidates[c] = readInts(in);
+        }
+        return candidates;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,77 @@
+package core;
+
+import objects.GeneDistances;
+import objects.GeneTuple;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Writes one line per HGT, either as JSON object (NDJSON) or tab separated with a header line (TSV). Nothing but
+ * the output buffer is kept, so the memory used doesn't depend on the amount of HGTs.
+ */
+public class TextHgtSink implements HgtSink {
+
+    private final String filename;
+    private final Writer out;
+    private final boolean json;
+
+    private TextHgtSink(String filename, OutputStream out, boolean json) throws IOException {
+        this.filename = filename;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        this.json = json;
+        if (!json) {
+            this.out.write("tree\tfirst\tsecond\ttype\n");
+        }
+    }
+
+    /**
+     * @return sink writing {"tree": ..., "first": ..., "second": ..., "type": ...} lines
+     */
+    public static TextHgtSink ndjson(String filename) throws IOException {
+        Logger.getGlobal().warning("Writing to file " + filename + "...");
+        return new TextHgtSink(filename, NexusWriter.openOutput(filename), true);
+    }
+
+    /**
+     * @return sink writing tree, first, second and type separated by tabs
+     */
+    public static TextHgtSink tsv(String filename) throws IOException {
+        Logger.getGlobal().warning("Writing to file " + filename + "...");
+        return new TextHgtSink(filename, NexusWriter.openOutput(filename), false);
+    }
+
+    /**
+     * @param name name of the output used in the log
+     * @param out  output, is closed together with the sink
+     * @param json NDJSON if true, TSV otherwise
+     * @return sink writing to out
+     */
+    public static TextHgtSink open(String name, OutputStream out, boolean json) throws IOException {
+        return new TextHgtSink(name, out, json);
+    }
+
+    @Override
+    public void acceptTree(GeneDistances tree, List<GeneTuple> hgts) throws IOException {
+        for (GeneTuple hgt : hgts) {
+            if (json) {
+                out.write("{\"tree\": \"" + Utils.escape(tree.getTreeName()) + "\", \"first\": \"" + Utils.escape(hgt.first.getSpeciesAndGeneIdentifier())
+                        + "\", \"second\": \"" + Utils.escape(hgt.second.getSpeciesAndGeneIdentifier()) + "\", \"type\": \"" + hgt.type + "\"}\n");
+            } else {
+                out.write(tree.getTreeName() + "\t" + hgt.first.getSpeciesAndGeneIdentifier() + "\t" + hgt.second.getSpeciesAndGeneIdentifier() + "\t" + hgt.type + "\n");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        Logger.getGlobal().warning("Export to " + filename + " completed!");
+    }
+}
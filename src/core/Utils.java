@@ -1,39 +1,74 @@
 package core;
 
 import objects.Gene;
+import objects.GeneDistances;
 import objects.GeneTuple;
 import objects.Species;
+import objects.SpeciesRegistry;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
 public abstract class Utils {
+    /**
+     * Returns the distance between two genes, or Double.MAX_VALUE if they aren't part of the same gene tree
+     */
     public static double getDistanceBetweenGenes(Gene gene, Gene comparedGene) {
-        return gene.getDistances().getOrDefault(comparedGene, Double.MAX_VALUE);
+        GeneDistances tree = gene.getDistances();
+        if (tree == null || tree != comparedGene.getDistances()) {
+            return Double.MAX_VALUE;
+        }
+        return tree.getDistance(gene.getIndexInTree(), comparedGene.getIndexInTree());
+    }
+
+    /**
+     * Escapes backslashes, quotes and line breaks, which is sufficient for JSON strings and Prometheus labels
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
     }
 
-    public static List<Species> getOrderedSpecies(Map<Species, Double> map) {
-        List<Species> orderedSpecies = new ArrayList<>();
-        //map.keySet().length^2 runtime
-        for (int i = 0; i < map.keySet().size(); i++) {
-            Species next = null;
-            Double nextDouble = Double.MAX_VALUE;
-            for (Species sForOrder : map.keySet()) {
-                //smaller than next int AND not already in the orderedSpecies list
-                if (map.get(sForOrder) <= nextDouble && orderedSpecies.stream().filter(o -> o.getName().equals(sForOrder.getName())).findFirst().orElse(null) == null) {
-                    nextDouble = map.get(sForOrder);
-                    next = sForOrder;
+    /**
+     * Merges the species of all gene trees by id, so every species holds its genes of all trees
+     *
+     * @param distanceMap gene trees as read from the input
+     * @param registry    registry the species of the gene trees were interned in
+     * @return all species sorted by name, their genes sorted by id, indexed by gene tree and numbered in this order
+     */
+    public static List<Species> mergeSpecies(Map<String, GeneDistances> distanceMap, SpeciesRegistry registry) {
+        List<Species> allSpecies = new ArrayList<>();
+        Species[] speciesById = new Species[registry.size()];
+
+        for (String key : distanceMap.keySet()) {
+            for (Species s : distanceMap.get(key).getSpecies()) {
+                Species fromList = speciesById[s.getId()];
+                if (fromList == null) {
+                    speciesById[s.getId()] = s;
+                    allSpecies.add(s);
+                } else {
+                    fromList.getGenes().addAll(s.getGenes());
                 }
             }
-            orderedSpecies.add(next);
         }
-        return orderedSpecies;
+
+        allSpecies.sort(Comparator.comparing(Species::getName));
+        int number = 0;
+        for (Species s : allSpecies) {
+            s.getGenes().sort(Comparator.comparing(Gene::getId));
+            s.indexGenesByTree();
+            for (Gene gene : s.getGenes()) {
+                gene.setNumber(number++);
+            }
+        }
+        return allSpecies;
     }
 
-    public static void evaluateResults(List<Species> allSpeciesAfterRunningAlgorithm, List<Gene> genesWithRCBRelationsExtractedFromInput) {
+    public static void evaluateResults(List<Species> allSpeciesAfterRunningAlgorithm, List<GeneTuple> foundHgts, List<Gene> genesWithRCBRelationsExtractedFromInput) {
 
         Logger log = Logger.getGlobal();
         if (genesWithRCBRelationsExtractedFromInput == null || genesWithRCBRelationsExtractedFromInput.size() == 0) {
@@ -50,18 +85,28 @@ public abstract class Utils {
         int incorrectLesser = 0;
         int lesserAsEqual = 0;
         int higherAsEqual = 0;
+        //relation of every pair of genes in a tree like in the dense output, the first HGT of a pair counts
+        Map<String, GeneTuple.RelationType> foundTypes = new HashMap<>();
+        for (GeneTuple tuple : foundHgts) {
+            foundTypes.putIfAbsent(tuple.first.getGeneTree() + " " + tuple.first.getSpeciesAndGeneIdentifier() + " " + tuple.second.getSpeciesAndGeneIdentifier(), tuple.type);
+        }
         for (Species s : allSpeciesAfterRunningAlgorithm) {
             for (Gene gene : s.getGenes()) {
+                List<GeneTuple> foundRelations = new ArrayList<>();
+                for (Gene comparedGene : gene.getDistances().getGenes()) {
+                    GeneTuple relation = new GeneTuple(gene, comparedGene, GeneTuple.RelationType.EQUAL);
+                    GeneTuple.RelationType type = gene == comparedGene ? null : foundTypes.get(gene.getGeneTree() + " " + relation.first.getSpeciesAndGeneIdentifier() + " " + relation.second.getSpeciesAndGeneIdentifier());
+                    foundRelations.add(type == null ? relation : new GeneTuple(gene, comparedGene, type));
+                }
                 Gene matchingGeneFromInput = genesWithRCBRelationsExtractedFromInput.stream().filter(g -> g.getSpeciesAndGeneIdentifier().equals(gene.getSpeciesAndGeneIdentifier())).findFirst().orElse(null);
                 if (matchingGeneFromInput != null) {
                     List<GeneTuple> realRelations = matchingGeneFromInput.getRelationsToOtherGenesInItsTree();
-                    if (realRelations.size() != gene.getRelationsToOtherGenesInItsTree().size()) {
+                    if (realRelations.size() != foundRelations.size()) {
                         log.warning("Relation list size mismatch, skipping " + gene.getSpeciesAndGeneIdentifier());
                         continue;
                     }
 
-                    for (int i = 0; i < gene.getRelationsToOtherGenesInItsTree().size(); i++) {
-                        GeneTuple foundRelation = gene.getRelationsToOtherGenesInItsTree().get(i);
+                    for (GeneTuple foundRelation : foundRelations) {
                         GeneTuple realRelation = null;
                         for (GeneTuple potentialRealRelation : realRelations) {
                             if (potentialRealRelation.containsGenes(foundRelation.first.getSpeciesAndGeneIdentifier(), foundRelation.second.getSpeciesAndGeneIdentifier())) {
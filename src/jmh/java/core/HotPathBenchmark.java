@@ -0,0 +1,225 @@
+package core;
+
+import objects.BestMatchDistances;
+import objects.CandidatePairs;
+import objects.Gene;
+import objects.GeneDistances;
+import objects.GeneTuple;
+import objects.Species;
+import objects.SpeciesDistribution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Microbenchmarks of the hot paths of the tool on a synthetic dataset written by DatasetGenerator, from parsing over
+ * the evaluation of a species to writing the dense matrices. The species specific benchmarks use the species with the
+ * most genes, as it is the most expensive one. Run through BenchmarkRunner, which adds the gc profiler.
+ *
+ * <p>The gc profiler only counts the allocations of the benchmark thread, so the common pool is started without
+ * workers and used for everything: the blocks of GeneRangeTask and the parallel streams are then run by the benchmark
+ * thread itself when it joins them.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.util.concurrent.ForkJoinPool.common.parallelism=0")
+public class HotPathBenchmark {
+
+    private static final long SEED = 42;
+    private static final double PERCENTAGE = 0.05;
+
+    @Param({"20", "60"})
+    public int species;
+
+    @Param({"40", "120"})
+    public int genesPerSpecies;
+
+    @Param({"10", "40"})
+    public int trees;
+
+    private Path input;
+    private Path output;
+    private ForkJoinPool pool;
+    private Metrics metrics;
+
+    private HashMap<String, GeneDistances> distanceMap;
+    private List<Species> allSpecies;
+    private CandidatePairs allCandidates;
+    private List<GeneTuple> found;
+
+    private Species largest;
+    private List<Species> candidateSpecies;
+    private double[][] bestMatchDistances;
+    private BestMatchDistances[] bestMatches;
+    private Gene[][] pairs;
+    private int[] pairGenes;
+    private int[] pairCandidates;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Logger.getGlobal().setLevel(java.util.logging.Level.SEVERE);
+        input = Files.createTempFile("hgt-benchmark", ".nex");
+        output = Files.createTempFile("hgt-benchmark-out", ".nex");
+        try (Writer writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+            new DatasetGenerator(species, trees, Math.max(1, genesPerSpecies / trees), SEED, 0.05).write(writer);
+        }
+        pool = ForkJoinPool.commonPool();
+        metrics = new Metrics();
+
+        NexusReaderDistances reader = new NexusReaderDistances(input.toString(), 1);
+        distanceMap = reader.getDistanceMap();
+        allSpecies = Utils.mergeSpecies(distanceMap, reader.getSpeciesRegistry());
+        allCandidates = new CandidatePairs(allSpecies);
+        for (Species s : allSpecies) {
+            DistributionAlgorithm.evaluateSpecies(s, allSpecies, PERCENTAGE, metrics, null, 1, allCandidates);
+        }
+        found = new ArrayList<>();
+        DistributionAlgorithm.confirmHgts(pool, allCandidates, distanceMap.values(), HgtSink.collect(found), metrics);
+
+        largest = allSpecies.get(0);
+        for (Species s : allSpecies) {
+            if (s.getGenes().size() > largest.getGenes().size()) {
+                largest = s;
+            }
+        }
+
+        candidateSpecies = new ArrayList<>(allSpecies);
+        candidateSpecies.remove(largest);
+        List<Gene> genes = largest.getGenes();
+        bestMatchDistances = new double[genes.size()][];
+        bestMatches = new BestMatchDistances[genes.size()];
+        for (int g = 0; g < genes.size(); g++) {
+            bestMatchDistances[g] = new double[candidateSpecies.size()];
+            for (int c = 0; c < candidateSpecies.size(); c++) {
+                bestMatchDistances[g][c] = candidateSpecies.get(c).findBestMatchDistance(genes.get(g));
+            }
+            bestMatches[g] = new BestMatchDistances(bestMatchDistances[g]);
+        }
+
+        //every gene of the species against the first gene of every other species in its tree
+        Map<String, Integer> candidateIndex = new HashMap<>();
+        for (int c = 0; c < candidateSpecies.size(); c++) {
+            candidateIndex.put(candidateSpecies.get(c).getName(), c);
+        }
+        List<Gene[]> pairList = new ArrayList<>();
+        List<int[]> pairIndices = new ArrayList<>();
+        for (int g = 0; g < genes.size(); g++) {
+            Gene gene = genes.get(g);
+            Set<String> seen = new HashSet<>();
+            for (Gene comparedGene : gene.getDistances().getGenes()) {
+                String comparedSpecies = comparedGene.getParent().getName();
+                if (candidateIndex.containsKey(comparedSpecies) && seen.add(comparedSpecies)) {
+                    pairList.add(new Gene[]{gene, comparedGene});
+                    pairIndices.add(new int[]{g, candidateIndex.get(comparedSpecies)});
+                }
+            }
+        }
+        pairs = pairList.toArray(new Gene[0][]);
+        pairGenes = pairIndices.stream().mapToInt(indices -> indices[0]).toArray();
+        pairCandidates = pairIndices.stream().mapToInt(indices -> indices[1]).toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+    }
+
+    /**
+     * Tokenizing and parsing the ALLDISTANCES block
+     */
+    @Benchmark
+    public HashMap<String, GeneDistances> parse() throws Exception {
+        return new NexusReaderDistances(input.toString(), 1).getDistanceMap();
+    }
+
+    /**
+     * Sorting and grouping the best match distances of every gene into a BestMatchDistances, done once per gene
+     */
+    @Benchmark
+    public void buildBestMatchDistances(Blackhole blackhole) {
+        for (double[] distances : bestMatchDistances) {
+            blackhole.consume(new BestMatchDistances(distances));
+        }
+    }
+
+    /**
+     * Reading the position of every other species for every gene and building the distributions from them
+     */
+    @Benchmark
+    public SpeciesDistribution buildDistribution() {
+        int[][] ranks = new int[bestMatches.length][candidateSpecies.size()];
+        for (int g = 0; g < bestMatches.length; g++) {
+            for (int c = 0; c < candidateSpecies.size(); c++) {
+                ranks[g][c] = bestMatches[g].getPosition(c);
+            }
+        }
+        return new SpeciesDistribution(largest, candidateSpecies, ranks, allSpecies.size());
+    }
+
+    /**
+     * Position of a candidate species with the distance to one of its genes in place of its best match distance
+     */
+    @Benchmark
+    public void position(Blackhole blackhole) {
+        for (int i = 0; i < pairs.length; i++) {
+            blackhole.consume(DistributionAlgorithm.getPositionOfSpeciesComparedToGene(bestMatches[pairGenes[i]], pairs[i][0], pairs[i][1], pairCandidates[i]));
+        }
+    }
+
+    /**
+     * Complete evaluation of one species: best matches, distribution, borders and candidate search, into new candidate
+     * sets like in a run
+     */
+    @Benchmark
+    public CandidatePairs evaluateSpecies() {
+        CandidatePairs candidates = new CandidatePairs(allSpecies);
+        DistributionAlgorithm.evaluateSpecies(largest, allSpecies, PERCENTAGE, metrics, null, 1, candidates);
+        return candidates;
+    }
+
+    /**
+     * Resolving the mutual candidates of all species into the confirmed HGTs of every gene tree
+     */
+    @Benchmark
+    public long mutualResolution(Blackhole blackhole) throws IOException {
+        return DistributionAlgorithm.confirmHgts(pool, allCandidates, distanceMap.values(), (tree, hgts) -> blackhole.consume(hgts), metrics);
+    }
+
+    /**
+     * Rendering and writing the dense relation matrices of all gene trees
+     */
+    @Benchmark
+    public void writeDense() {
+        NexusWriter.writeHgtsToFile(output.toString(), distanceMap, found, 1);
+    }
+}
@@ -0,0 +1,115 @@
+package objects;
+
+import java.util.Arrays;
+
+/**
+ * Best match distances of a gene to every other species, together with the sorted distinct distances and how often
+ * each of them occurs. Immutable once built, so any thread can look up the grouped position of a species, also with
+ * the distance of one species replaced, by binary search without regrouping the distances.
+ *
+ * <p>The distances are sorted as primitive doubles in a scratch array that every thread reuses, so building one only
+ * allocates the distinct distances and their multiplicities it keeps.</p>
+ */
+public class BestMatchDistances {
+
+    /**
+     * Sort buffer of one thread, grown when a gene has more distances than it can hold
+     */
+    private static class Scratch {
+        private double[] sorted = new double[16];
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final double[] distances;
+    private final double[] distinct;
+    private final int[] multiplicity;
+
+    /**
+     * Constructor.
+     *
+     * @param distances best match distance to every other species, in the order of the candidate species
+     */
+    public BestMatchDistances(double[] distances) {
+        this.distances = distances;
+        Scratch scratch = SCRATCH.get();
+        if (scratch.sorted.length < distances.length) {
+            scratch.sorted = new double[Math.max(distances.length, scratch.sorted.length * 2)];
+        }
+        double[] sorted = scratch.sorted;
+        for (int i = 0; i < distances.length; i++) {
+            sorted[i] = distances[i] + 0.0; //-0.0 and 0.0 are the same distance
+        }
+        Arrays.sort(sorted, 0, distances.length);
+        int count = 0;
+        for (int i = 0; i < distances.length; i++) {
+            if (i == 0 || Double.compare(sorted[i - 1], sorted[i]) != 0) {
+                count++;
+            }
+        }
+        this.distinct = new double[count];
+        this.multiplicity = new int[count];
+        int group = -1;
+        for (int i = 0; i < distances.length; i++) {
+            if (i == 0 || Double.compare(sorted[i - 1], sorted[i]) != 0) {
+                distinct[++group] = sorted[i];
+            }
+            multiplicity[group]++;
+        }
+    }
+
+    /**
+     * @return best match distance to the candidate species with the given index
+     */
+    public double getDistance(int candidate) {
+        return distances[candidate];
+    }
+
+    public int size() {
+        return distances.length;
+    }
+
+    /**
+     * @return grouped position of a candidate species: the amount of distinct distances smaller than its own
+     */
+    public int getPosition(int candidate) {
+        return countSmaller(distances[candidate]);
+    }
+
+    /**
+     * Returns the grouped position a candidate species would have if its best match distance was replaced. Same
+     * result as regrouping all distances with the replaced one, without modifying anything.
+     *
+     * @param candidate index of the candidate species
+     * @param distance  distance replacing the best match distance of the candidate species
+     * @return amount of distinct distances smaller than distance after the replacement
+     */
+    public int getPositionWithReplacement(int candidate, double distance) {
+        double original = distances[candidate] + 0.0;
+        distance += 0.0;
+        int position = countSmaller(distance);
+        //the original distance disappears if no other species has it, so it doesn't count anymore if it was smaller
+        if (Double.compare(original, distance) < 0 && multiplicity[countSmaller(original)] == 1) {
+            position--;
+        }
+        return position;
+    }
+
+    /**
+     * @return amount of distinct distances smaller than the given one
+     */
+    private int countSmaller(double distance) {
+        int low = 0;
+        int high = distinct.length;
+        distance += 0.0;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Double.compare(distinct[middle], distance) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
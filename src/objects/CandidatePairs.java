@@ -0,0 +1,92 @@
+package objects;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Potential HGT candidates of all genes as directed pairs (gene, candidate) of gene numbers, one hashed set per
+ * relation type. Worker threads add their candidates concurrently without any further synchronization, an HGT is a pair
+ * that is contained in both directions, which is a single membership check per pair.
+ */
+public class CandidatePairs {
+
+    private final Gene[] genes;
+    private final Set<Long> lesser;
+    private final Set<Long> higher;
+
+    /**
+     * Constructor. The genes keep the numbers they got when their dataset was loaded, so several runs on the same
+     * genes, also on different subsets of the species, don't interfere.
+     *
+     * @param allSpecies List of all species of the run, their genes numbered by Utils.mergeSpecies()
+     */
+    public CandidatePairs(List<Species> allSpecies) {
+        int count = 0;
+        for (Species s : allSpecies) {
+            for (Gene gene : s.getGenes()) {
+                if (gene.getNumber() < 0) {
+                    throw new IllegalArgumentException("Gene " + gene.getSpeciesAndGeneIdentifier() + " isn't numbered, see Utils.mergeSpecies()");
+                }
+                count = Math.max(count, gene.getNumber() + 1);
+            }
+        }
+        this.genes = new Gene[count];
+        for (Species s : allSpecies) {
+            for (Gene gene : s.getGenes()) {
+                genes[gene.getNumber()] = gene;
+            }
+        }
+        this.lesser = ConcurrentHashMap.newKeySet();
+        this.higher = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Records candidate as potential HGT candidate of gene, safe to call from multiple threads
+     */
+    public void add(GeneTuple.RelationType type, Gene gene, Gene candidate) {
+        pairs(type).add(key(gene.getNumber(), candidate.getNumber()));
+    }
+
+    /**
+     * Finds all pairs of genes that are candidates of each other. Runs as parallel stream, so it uses the
+     * ForkJoinPool it is called from.
+     *
+     * @param type relation type
+     * @return every mutual pair once, as (lower gene number << 32 | higher gene number), in no particular order
+     */
+    public long[] findMutualPairs(GeneTuple.RelationType type) {
+        Set<Long> pairs = pairs(type);
+        return pairs.parallelStream()
+                .filter(key -> (int) (key >>> 32) < (int) (long) key && pairs.contains((key << 32) | (key >>> 32)))
+                .mapToLong(Long::longValue)
+                .toArray();
+    }
+
+    /**
+     * @return gene with the given number, null if it isn't part of the run
+     */
+    public Gene getGene(int number) {
+        return genes[number];
+    }
+
+    /**
+     * @return highest gene number of the run + 1
+     */
+    public int size() {
+        return genes.length;
+    }
+
+    private Set<Long> pairs(GeneTuple.RelationType type) {
+        if (type == GeneTuple.RelationType.LESSER) {
+            return lesser;
+        } else if (type == GeneTuple.RelationType.HIGHER) {
+            return higher;
+        }
+        throw new IllegalArgumentException("Only LESSER and HIGHER candidates are recorded, not " + type);
+    }
+
+    private static long key(int gene, int candidate) {
+        return ((long) gene << 32) | candidate;
+    }
+}
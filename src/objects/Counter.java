@@ -1,5 +0,0 @@
-package objects;
-
-public class Counter {
-    public int value = 0;
-}
@@ -1,9 +1,7 @@
 package objects;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Gene {
 
@@ -12,11 +10,14 @@ public class Gene {
      */
     private final String id;
     private final Species parent;
-    private Map<Species, Double> bestMatchDistances;
-    private final List<Gene> potentialCandidateGenesLesser;
-    private final List<Gene> potentialCandidateGenesHigher;
-    private final Map<Gene, Double> distances;
+    private final String speciesAndGeneIdentifier;
     private final String geneTree;
+    private GeneDistances distances;
+    private int indexInTree;
+    /**
+     * Number of the gene among all genes of its dataset, see Utils.mergeSpecies() and CandidatePairs
+     */
+    private int number;
     private final List<GeneTuple> relationsToOtherGenesInItsTree;
     private String[] relationsToOtherGenesInItsTreeAsString;
 
@@ -30,11 +31,11 @@ public class Gene {
     public Gene(String id, Species parent, String geneTree) {
         this.id = id;
         this.parent = parent;
-        this.bestMatchDistances = null;
-        this.potentialCandidateGenesLesser = new ArrayList<>();
-        this.potentialCandidateGenesHigher = new ArrayList<>();
+        this.speciesAndGeneIdentifier = parent.getName() + "/" + id;
         this.relationsToOtherGenesInItsTree = new ArrayList<>();
-        this.distances = new HashMap<>();
+        this.distances = null;
+        this.indexInTree = -1;
+        this.number = -1;
         this.geneTree = geneTree;
         parent.getGenes().add(this);
     }
@@ -47,20 +48,12 @@ public class Gene {
         return parent;
     }
 
-    public Map<Species, Double> getBestMatchDistances() {
-        return bestMatchDistances;
-    }
-
-    public void setBestMatchDistances(Map<Species, Double> bestMatchDistances) {
-        this.bestMatchDistances = bestMatchDistances;
-    }
-
-    public List<Gene> getPotentialCandidateGenesLesser() {
-        return potentialCandidateGenesLesser;
+    public int getNumber() {
+        return number;
     }
 
-    public List<Gene> getPotentialCandidateGenesHigher() {
-        return potentialCandidateGenesHigher;
+    public void setNumber(int number) {
+        this.number = number;
     }
 
     public List<GeneTuple> getRelationsToOtherGenesInItsTree() {
@@ -75,12 +68,24 @@ public class Gene {
         return relationsToOtherGenesInItsTreeAsString;
     }
 
-    public Map<Gene, Double> getDistances() {
+    /**
+     * Gene tree holding the distances of this gene, null if the gene wasn't read from an ALLDISTANCES block
+     */
+    public GeneDistances getDistances() {
         return distances;
     }
 
+    public int getIndexInTree() {
+        return indexInTree;
+    }
+
+    public void setDistances(GeneDistances distances, int indexInTree) {
+        this.distances = distances;
+        this.indexInTree = indexInTree;
+    }
+
     public String getSpeciesAndGeneIdentifier() {
-        return this.getParent().getName() + "/" + this.getId();
+        return speciesAndGeneIdentifier;
     }
 
     public String getGeneTree() {
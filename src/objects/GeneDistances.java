@@ -2,26 +2,35 @@ package objects;
 
 import objects.Matrix.MatrixFormat;
 
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class GeneDistances {
 
     private List<Species> species;
     private List<Gene> genes;
-    private Matrix<Double> distances;
+    private final MatrixFormat format;
+    private double[] distances;
+    private DoubleBuffer mappedDistances;
+    private int size;
+    private int rows;
     private String treeName;
 
     /**
-     * Constructor declares ArrayList genes and ArrayList distances and sets the attribute treeName.
+     * Constructor declares ArrayList genes and sets the attributes format and treeName.
      *
      * @param treeName Identifier of the root of the gene tree as String
-     * @param format   Determines, if the matrix is an upper, lower or symmetrical matrix
+     * @param format   Determines, if the matrix in the input is an upper, lower or symmetrical matrix
      */
     public GeneDistances(MatrixFormat format, String treeName) {
         this.species = new ArrayList<>();
         this.genes = new ArrayList<Gene>();
-        this.distances = new Matrix<Double>(format);
+        this.format = format;
+        this.distances = new double[0];
+        this.size = 0;
+        this.rows = 0;
         this.treeName = treeName;
     }
 
@@ -34,13 +43,113 @@ public class GeneDistances {
         return this.genes;
     }
 
+    /**
+     * Stores the next row read from the input directly in the distance matrix. Upper triangular and full matrices
+     * know their size from the first row, lower triangular rows are packed until the size is known in finish().
+     *
+     * @param row    distances of the next gene, only the first length values are used
+     * @param length amount of distances in the row
+     * @throws NexusFormatException if the amount of values doesn't fit the format of the matrix
+     */
+    public void addRow(double[] row, int length) throws NexusFormatException {
+        int rowIdx = rows;
+        if (format == MatrixFormat.LOWER) {
+            if (length != rowIdx + 1) {
+                throw new NexusFormatException("Gene tree " + treeName + ": row " + (rowIdx + 1) + " contains " + length + " distances, expected " + (rowIdx + 1) + ".");
+            }
+            int offset = rowIdx * (rowIdx + 1) / 2;
+            if (offset + length > distances.length) {
+                distances = Arrays.copyOf(distances, Math.max(offset + length, distances.length * 2));
+            }
+            System.arraycopy(row, 0, distances, offset, length);
+        } else {
+            if (rowIdx == 0) {
+                size = length;
+                distances = new double[length * length];
+            }
+            int expected = format == MatrixFormat.UPPER ? size - rowIdx : size;
+            if (length != expected || rowIdx >= size) {
+                throw new NexusFormatException("Gene tree " + treeName + ": row " + (rowIdx + 1) + " contains " + length + " distances, expected " + Math.max(expected, 0) + ".");
+            }
+            System.arraycopy(row, 0, distances, rowIdx * size + (format == MatrixFormat.UPPER ? rowIdx : 0), length);
+        }
+        rows++;
+    }
+
+    /**
+     * Completes the dense n*n matrix after the last row was added, mirroring the missing triangle if the input only
+     * contained an upper or lower triangular matrix. Every gene of this tree is linked to its row afterwards.
+     *
+     * @throws NexusFormatException if the amount of rows doesn't match the amount of genes
+     */
+    public void finish() throws NexusFormatException {
+        int n = genes.size();
+        if (rows != n || (format != MatrixFormat.LOWER && rows > 0 && size != n)) {
+            throw new NexusFormatException("Gene tree " + treeName + " has " + n + " genes but " + rows + " rows of distances.");
+        }
+        if (format == MatrixFormat.LOWER) {
+            double[] packed = distances;
+            distances = new double[n * n];
+            for (int rowIdx = 0; rowIdx < n; rowIdx++) {
+                int offset = rowIdx * (rowIdx + 1) / 2;
+                for (int colIdx = 0; colIdx <= rowIdx; colIdx++) {
+                    distances[rowIdx * n + colIdx] = packed[offset + colIdx];
+                    distances[colIdx * n + rowIdx] = packed[offset + colIdx];
+                }
+            }
+        } else if (format == MatrixFormat.UPPER) {
+            for (int rowIdx = 1; rowIdx < n; rowIdx++) {
+                for (int colIdx = 0; colIdx < rowIdx; colIdx++) {
+                    distances[rowIdx * n + colIdx] = distances[colIdx * n + rowIdx];
+                }
+            }
+        }
+        size = n;
+        for (int i = 0; i < n; i++) {
+            genes.get(i).setDistances(this, i);
+        }
+    }
+
+    /**
+     * Completes the matrix with the dense n*n distances of a snapshot instead of added rows. The distances aren't
+     * copied, they are read from the buffer, usually a view of a mapped file. Every gene of this tree is linked to its
+     * row afterwards.
+     *
+     * @param matrix distances of all genes row by row
+     * @throws NexusFormatException if the amount of distances doesn't match the amount of genes
+     */
+    public void finish(DoubleBuffer matrix) throws NexusFormatException {
+        int n = genes.size();
+        if (rows != 0 || matrix.capacity() != (long) n * n) {
+            throw new NexusFormatException("Gene tree " + treeName + " has " + n + " genes but " + matrix.capacity() + " distances.");
+        }
+        distances = null;
+        mappedDistances = matrix;
+        size = n;
+        rows = n;
+        for (int i = 0; i < n; i++) {
+            genes.get(i).setDistances(this, i);
+        }
+    }
+
+    /**
+     * Returns the distance between two genes of this tree.
+     *
+     * @param row    index of the first gene in getGenes()
+     * @param column index of the second gene in getGenes()
+     * @return distance as double
+     */
+    public double getDistance(int row, int column) {
+        return distances != null ? distances[row * size + column] : mappedDistances.get(row * size + column);
+    }
+
     /**
      * Getter.
      *
-     * @return ArrayList of ArrayLists of Doubles represents a lower triangle matrix
+     * @return Format of the matrix in the input file
      */
-    public Matrix<Double> getDistances() {
-        return this.distances;
+    public MatrixFormat getFormat() {
+        return this.format;
     }
 
     /**
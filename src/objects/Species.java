@@ -1,26 +1,48 @@
 package objects;
 
-import core.Utils;
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Species {
 
     private final String name;
+    /**
+     * Dense id given by a SpeciesRegistry, the same for all species objects with this name
+     */
+    private final int id;
     private final List<Gene> genes;
+    /**
+     * Genes of this species grouped by gene tree, in the order of genes. Built by indexGenesByTree()
+     */
+    private volatile Map<String, List<Gene>> genesByTree;
 
-    public Species(String name) {
+    public Species(String name, int id) {
         this.name = name;
+        this.id = id;
         this.genes = new ArrayList<>();
     }
 
+    public Species(String name, SpeciesRegistry registry) {
+        this(name, registry.intern(name));
+    }
+
     public double findBestMatchDistance(Gene comparedGene) {
         double currentBest = Double.MAX_VALUE;
-        for (Gene gene : this.getGenes()) {
-            double distance = Utils.getDistanceBetweenGenes(comparedGene, gene);
-            if (distance < currentBest) {
-                currentBest = distance;
+        GeneDistances tree = comparedGene.getDistances();
+        if (tree == null) {
+            return currentBest;
+        }
+        int row = comparedGene.getIndexInTree();
+        //genes of other trees have no distance to comparedGene
+        for (Gene gene : this.getGenesInTree(comparedGene.getGeneTree())) {
+            if (gene.getDistances() == tree) {
+                double distance = tree.getDistance(row, gene.getIndexInTree());
+                if (distance < currentBest) {
+                    currentBest = distance;
+                }
             }
         }
         return currentBest;
@@ -30,7 +52,32 @@ public class Species {
         return genes;
     }
 
+    /**
+     * Groups the genes by gene tree, has to be called again after the genes were changed
+     */
+    public void indexGenesByTree() {
+        Map<String, List<Gene>> index = new HashMap<>();
+        for (Gene gene : genes) {
+            index.computeIfAbsent(gene.getGeneTree(), tree -> new ArrayList<>()).add(gene);
+        }
+        genesByTree = index;
+    }
+
+    /**
+     * @return genes of this species in the given gene tree, in the order of getGenes()
+     */
+    public List<Gene> getGenesInTree(String geneTree) {
+        if (genesByTree == null) {
+            indexGenesByTree();
+        }
+        return genesByTree.getOrDefault(geneTree, Collections.emptyList());
+    }
+
     public String getName() {
         return name;
     }
+
+    public int getId() {
+        return id;
+    }
 }
@@ -0,0 +1,126 @@
+package objects;
+
+import java.util.List;
+
+/**
+ * Rank table of one species: for every gene of the species the grouped position of every other species when those
+ * are ordered by their best match distance to the gene. The distribution of a candidate species is the histogram of
+ * its positions over all genes, stored cumulatively so the borders for any percentage can be read off directly.
+ */
+public class SpeciesDistribution {
+
+    private final Species species;
+    private final List<Species> candidateSpecies;
+    private final int[][] ranks;
+    private final int[][] cumulativeCounts;
+    private final int[] totalCounts;
+
+    /**
+     * Constructor. Builds the cumulative histograms of every candidate species from the rank table.
+     *
+     * @param species            species whose genes were ranked
+     * @param candidateSpecies   every other species, in the column order of ranks
+     * @param ranks              ranks[gene][candidate] is the grouped position of the candidate for that gene
+     * @param distributionLength amount of possible positions, usually the amount of all species
+     */
+    public SpeciesDistribution(Species species, List<Species> candidateSpecies, int[][] ranks, int distributionLength) {
+        this.species = species;
+        this.candidateSpecies = candidateSpecies;
+        this.ranks = ranks;
+        this.cumulativeCounts = new int[candidateSpecies.size()][distributionLength];
+        this.totalCounts = new int[candidateSpecies.size()];
+        for (int[] ranksOfGene : ranks) {
+            for (int c = 0; c < ranksOfGene.length; c++) {
+                cumulativeCounts[c][ranksOfGene[c]]++;
+                totalCounts[c]++;
+            }
+        }
+        for (int[] counts : cumulativeCounts) {
+            for (int i = 1; i < counts.length; i++) {
+                counts[i] += counts[i - 1];
+            }
+        }
+    }
+
+    private SpeciesDistribution(Species species, List<Species> candidateSpecies, int[][] cumulativeCounts) {
+        this.species = species;
+        this.candidateSpecies = candidateSpecies;
+        this.ranks = null;
+        this.cumulativeCounts = cumulativeCounts;
+        this.totalCounts = new int[cumulativeCounts.length];
+        for (int c = 0; c < cumulativeCounts.length; c++) {
+            int[] counts = cumulativeCounts[c];
+            totalCounts[c] = counts.length == 0 ? 0 : counts[counts.length - 1];
+        }
+    }
+
+    /**
+     * Restores a distribution from the histograms of an earlier evaluation, the rank table isn't available then
+     *
+     * @param species          species whose genes were ranked
+     * @param candidateSpecies every other species, in the order of the histograms
+     * @param cumulativeCounts cumulative histogram of every candidate species, see getCumulativeCounts()
+     * @return the distribution
+     */
+    public static SpeciesDistribution fromCumulativeCounts(Species species, List<Species> candidateSpecies, int[][] cumulativeCounts) {
+        return new SpeciesDistribution(species, candidateSpecies, cumulativeCounts);
+    }
+
+    /**
+     * Returns the first position at which at least the given percentage of the distribution lies at or before it
+     *
+     * @param candidate  index of the candidate species
+     * @param percentage percentage to look for in the distribution, for example smallest 5%
+     * @return position of the LESSER border, 0 if the distribution is empty
+     */
+    public int getBorderLesser(int candidate, double percentage) {
+        int[] counts = cumulativeCounts[candidate];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] >= totalCounts[candidate] * percentage) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the last position at which at least the given percentage of the distribution lies at or after it
+     *
+     * @param candidate  index of the candidate species
+     * @param percentage percentage to look for in the distribution, for example highest 5%
+     * @return position of the HIGHER border, the length of the distribution if it is never reached
+     */
+    public int getBorderHigher(int candidate, double percentage) {
+        int[] counts = cumulativeCounts[candidate];
+        for (int i = counts.length - 1; i >= 0; i--) {
+            int countFromHere = totalCounts[candidate] - (i > 0 ? counts[i - 1] : 0);
+            if (countFromHere >= totalCounts[candidate] * percentage) {
+                return i;
+            }
+        }
+        return counts.length;
+    }
+
+    public Species getSpecies() {
+        return species;
+    }
+
+    public List<Species> getCandidateSpecies() {
+        return candidateSpecies;
+    }
+
+    /**
+     * @return the rank table, null if the distribution was restored from its histograms
+     */
+    public int[][] getRanks() {
+        return ranks;
+    }
+
+    /**
+     * @return cumulativeCounts[candidate][position] is the amount of genes at which the candidate species is at this
+     * position or before it
+     */
+    public int[][] getCumulativeCounts() {
+        return cumulativeCounts;
+    }
+}
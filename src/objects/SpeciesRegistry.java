@@ -0,0 +1,47 @@
+package objects;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns species names and gives every species a dense id, starting with 0 in the order the species are first seen.
+ * Species of different gene trees with the same name get the same id, so they can be compared and merged by id and
+ * sets of species can be stored as BitSets indexed by id, like the selection of Dataset.subset(). Safe to use from
+ * multiple threads.
+ */
+public class SpeciesRegistry {
+
+    private final Map<String, Integer> ids;
+    private final List<String> names;
+
+    public SpeciesRegistry() {
+        this.ids = new HashMap<>();
+        this.names = new ArrayList<>();
+    }
+
+    /**
+     * @return id of the species with the given name, a new one if the name wasn't seen before
+     */
+    public synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    public synchronized String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @return amount of species, all ids are smaller than this
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,134 @@
+package objects;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything the evaluation of one species found: the distribution and its borders of every candidate species and,
+ * for every gene, its best match distances and its potential candidates in every candidate species. Genes are
+ * identified by gene tree and index in the tree, so a stored result can be matched to the genes of a later run.
+ */
+public class SpeciesResult {
+
+    private final String species;
+    private final int[] bordersLesser;
+    private final int[] bordersHigher;
+    private final int[][] distribution;
+    private final List<GeneResult> genes;
+    private final Map<String, Map<Integer, GeneResult>> genesByTree;
+
+    /**
+     * Constructor.
+     *
+     * @param species       name of the species
+     * @param bordersLesser LESSER border of every candidate species
+     * @param bordersHigher HIGHER border of every candidate species
+     * @param genes         results of the genes of the species
+     */
+    public SpeciesResult(String species, int[] bordersLesser, int[] bordersHigher, List<GeneResult> genes) {
+        this(species, bordersLesser, bordersHigher, null, genes);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param species       name of the species
+     * @param bordersLesser LESSER border of every candidate species
+     * @param bordersHigher HIGHER border of every candidate species
+     * @param distribution  cumulative histogram of every candidate species, see SpeciesDistribution, null if not stored
+     * @param genes         results of the genes of the species
+     */
+    public SpeciesResult(String species, int[] bordersLesser, int[] bordersHigher, int[][] distribution, List<GeneResult> genes) {
+        this.species = species;
+        this.bordersLesser = bordersLesser;
+        this.bordersHigher = bordersHigher;
+        this.distribution = distribution;
+        this.genes = genes;
+        this.genesByTree = new HashMap<>();
+        for (GeneResult gene : genes) {
+            genesByTree.computeIfAbsent(gene.getGeneTree(), tree -> new HashMap<>()).put(gene.getIndexInTree(), gene);
+        }
+    }
+
+    public String getSpecies() {
+        return species;
+    }
+
+    public int[] getBordersLesser() {
+        return bordersLesser;
+    }
+
+    public int[] getBordersHigher() {
+        return bordersHigher;
+    }
+
+    /**
+     * @return cumulative histogram of every candidate species, null if it wasn't stored
+     */
+    public int[][] getDistribution() {
+        return distribution;
+    }
+
+    public List<GeneResult> getGenes() {
+        return genes;
+    }
+
+    /**
+     * @return result of the gene with the given index in the gene tree, null if there is none
+     */
+    public GeneResult getGene(String geneTree, int indexInTree) {
+        Map<Integer, GeneResult> tree = genesByTree.get(geneTree);
+        return tree == null ? null : tree.get(indexInTree);
+    }
+
+    /**
+     * Best match distances and potential candidates of one gene. The candidates are given per candidate species as
+     * indices in the gene tree of the gene.
+     */
+    public static class GeneResult {
+
+        private final String geneTree;
+        private final int indexInTree;
+        private final double[] bestMatchDistances;
+        private final int[][] candidatesLesser;
+        private final int[][] candidatesHigher;
+
+        /**
+         * Constructor.
+         *
+         * @param geneTree           name of the gene tree of the gene
+         * @param indexInTree        index of the gene in its tree
+         * @param bestMatchDistances best match distance to every candidate species, null if not stored
+         * @param candidatesLesser   LESSER candidates per candidate species
+         * @param candidatesHigher   HIGHER candidates per candidate species
+         */
+        public GeneResult(String geneTree, int indexInTree, double[] bestMatchDistances, int[][] candidatesLesser, int[][] candidatesHigher) {
+            this.geneTree = geneTree;
+            this.indexInTree = indexInTree;
+            this.bestMatchDistances = bestMatchDistances;
+            this.candidatesLesser = candidatesLesser;
+            this.candidatesHigher = candidatesHigher;
+        }
+
+        public String getGeneTree() {
+            return geneTree;
+        }
+
+        public int getIndexInTree() {
+            return indexInTree;
+        }
+
+        public double[] getBestMatchDistances() {
+            return bestMatchDistances;
+        }
+
+        public int[][] getCandidatesLesser() {
+            return candidatesLesser;
+        }
+
+        public int[][] getCandidatesHigher() {
+            return candidatesHigher;
+        }
+    }
+}